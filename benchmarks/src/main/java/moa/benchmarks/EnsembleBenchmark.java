@@ -0,0 +1,157 @@
+/*
+ *    EnsembleBenchmark.java
+ *
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package moa.benchmarks;
+
+import com.yahoo.labs.samoa.instances.Instance;
+import moa.classifiers.Classifier;
+import moa.classifiers.Multithreading;
+import moa.options.ClassOption;
+import moa.options.OptionHandler;
+import moa.streams.InstanceStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput and latency of trainOnInstance and getVotesForInstance for the parallel ensembles,
+ * over coreSize, scheduling, execution backend, ensemble size, attribute count and class count.
+ *
+ * <p>Every trial generates its instances up front from a RandomTreeGenerator, so stream generation is not
+ * measured, and trains the ensemble on a warm-up prefix so the trees have a realistic size. Training then
+ * keeps cycling through the instances, so the model goes on growing during the measurement.</p>
+ *
+ * <p>Run with {@code java -jar target/benchmarks.jar -prof gc} for the allocation rate, or through main(),
+ * which adds the GC profiler itself. Narrow the matrix with JMH's {@code -p}, for example
+ * {@code -p learner=LBagMC -p coreSize=1,8}. coreSize must not exceed the machine's processors.</p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+public class EnsembleBenchmark {
+
+    @Param({"OzaBagMC", "OzaBagAdwinMC", "LBagMC", "AdaptiveRandomForestMC"})
+    public String learner;
+
+    @Param({"1", "2", "4"})
+    public String coreSize;
+
+    @Param({"ForkJoin"})
+    public String scheduling;
+
+    /** Execution backend, for example -p backend=ForkJoinBackend,FixedThreadPoolBackend,VirtualThreadBackend */
+    @Param({"ForkJoinBackend"})
+    public String backend;
+
+    @Param({"10", "100"})
+    public int ensembleSize;
+
+    @Param({"10", "100"})
+    public int numAttributes;
+
+    @Param({"2", "10"})
+    public int numClasses;
+
+    /** Instances the ensemble is trained on before measuring */
+    @Param({"5000"})
+    public int warmupInstances;
+
+    /** Instances generated per trial and cycled through while measuring */
+    private static final int POOL_SIZE = 20000;
+
+    private Classifier _classifier;
+    private Instance[] _instances;
+    private int _next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        InstanceStream stream = (InstanceStream) ClassOption.cliStringToObject(
+                "generators.RandomTreeGenerator -c " + numClasses + " -o 0 -u " + numAttributes,
+                InstanceStream.class, null);
+        ((OptionHandler) stream).prepareForUse();
+        _instances = new Instance[POOL_SIZE];
+        for (int i = 0; i < POOL_SIZE; i++) {
+            _instances[i] = stream.nextInstance().getData();
+        }
+
+        _classifier = (Classifier) ClassOption.cliStringToObject(learnerCli(), Classifier.class, null);
+        _classifier.setModelContext(stream.getHeader());
+        _classifier.prepareForUse();
+        for (int i = 0; i < warmupInstances; i++) {
+            _classifier.trainOnInstance(_instances[i % POOL_SIZE]);
+        }
+        _next = warmupInstances % POOL_SIZE;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        if (_classifier instanceof Multithreading) {
+            ((Multithreading) _classifier).trainingHasEnded();
+        }
+    }
+
+    private String learnerCli() {
+        // OzaBagMC takes its ensemble size from -n, the others from -s
+        String sizeOption = learner.equals("OzaBagMC") ? " -n " : " -s ";
+        return "meta." + learner + sizeOption + ensembleSize + " -c " + coreSize + " -S " + scheduling + " -E " + backend;
+    }
+
+    private Instance nextInstance() {
+        Instance inst = _instances[_next];
+        _next = _next + 1 == POOL_SIZE ? 0 : _next + 1;
+        return inst;
+    }
+
+    @Benchmark
+    public void trainOnInstance() {
+        _classifier.trainOnInstance(nextInstance());
+    }
+
+    @Benchmark
+    public double[] getVotesForInstance() {
+        return _classifier.getVotesForInstance(nextInstance());
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(EnsembleBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}
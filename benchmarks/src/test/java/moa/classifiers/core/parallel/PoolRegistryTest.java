@@ -0,0 +1,58 @@
+/*
+ *    PoolRegistryTest.java
+ *
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package moa.classifiers.core.parallel;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the thread accounting of PoolRegistry.
+ */
+public class PoolRegistryTest extends TestCase {
+
+    public void testAcquireWithCapTakenByDedicatedThreads() {
+        int granted = PoolRegistry.acquireThreads(PoolRegistry.getThreadCap());
+        try {
+            PoolRegistry.Entry entry = PoolRegistry.acquire("shared", 4);
+            try {
+                assertNotNull(entry);
+                assertEquals(1, entry.getPool().getParallelism());
+            } finally {
+                PoolRegistry.release("shared");
+            }
+            assertTrue(entry.getPool().isShutdown());
+        } finally {
+            PoolRegistry.releaseThreads(granted);
+        }
+    }
+
+    public void testAcquireSharesPoolOnceCapIsTaken() {
+        int granted = PoolRegistry.acquireThreads(PoolRegistry.getThreadCap());
+        try {
+            PoolRegistry.Entry first = PoolRegistry.acquire("first", 4);
+            PoolRegistry.Entry second = PoolRegistry.acquire("second", 4);
+            try {
+                assertSame(first, second);
+            } finally {
+                PoolRegistry.release("second");
+                PoolRegistry.release("first");
+            }
+        } finally {
+            PoolRegistry.releaseThreads(granted);
+        }
+    }
+}
@@ -20,13 +20,31 @@
 
 package moa.classifiers;
 
+import java.io.Serializable;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Random;
-import java.util.concurrent.ForkJoinPool;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.IntConsumer;
+import java.util.function.IntFunction;
 
 import moa.capabilities.CapabilitiesHandler;
 
+import moa.classifiers.core.parallel.ExecutionBackend;
+import moa.classifiers.core.parallel.PoolRegistry;
+import moa.classifiers.trees.HoeffdingTree;
+import moa.core.Measurement;
+import moa.options.ClassOption;
+
+import com.github.javacliparser.FlagOption;
 import com.github.javacliparser.IntOption;
+import com.github.javacliparser.MultiChoiceOption;
 
 import com.yahoo.labs.samoa.instances.Instance;
 
@@ -37,15 +55,120 @@ public abstract class AbstractClassifierParallel extends AbstractClassifier
     public IntOption _amountOfCores = new IntOption("coreSize", 'c',
             "The amount of CPU Cores used for multi-threading", 1, (Runtime.getRuntime().availableProcessors()-2)*-1, Runtime.getRuntime().availableProcessors());
 
+    public MultiChoiceOption _schedulingOption = new MultiChoiceOption("scheduling", 'S',
+            "How ensemble members are scheduled on the worker threads when coreSize is not 1.",
+            new String[]{"ForkJoin", "PinnedWorkers", "CostAware"},
+            new String[]{"Members are spread over the pool again for every instance",
+                    "Every member is pinned to one worker thread fed through its own queue",
+                    "Members are packed into one task per core by measured cost, longest first"}, 0);
+
+    public ClassOption _executionBackendOption = new ClassOption("executionBackend", 'E',
+            "Threads the members run on when coreSize is not 1. Only SharedPoolBackend counts its threads against "
+                    + "the thread cap of the pool registry.", ExecutionBackend.class, "ForkJoinBackend");
+
+    public FlagOption _copyInstancesOption = new FlagOption("copyInstances", 'C',
+            "Train members on full copies of every instance instead of shared views. Needed by base learners that keep the instances they are trained on, such as kNN.");
+
+    public IntOption _adaptivePeriodOption = new IntOption("adaptivePeriod", 'A',
+            "Instances between re-timing every parallelism level up to coreSize, serial included, and switching to the fastest. "
+                    + "0 keeps every coreSize core in use. Not used with PinnedWorkers scheduling.", 0, 0, Integer.MAX_VALUE);
+
+    public IntOption _memoryBudgetOption = new IntOption("memoryBudget", 'M',
+            "Megabytes the model may take, checked by the evaluation tasks every memCheckFrequency instances. Over it, "
+                    + "background learners are dropped first, then members are reset one by one. 0 = no budget.",
+            0, 0, Integer.MAX_VALUE);
+
+    protected static final int SCHEDULING_FORK_JOIN = 0;
+    protected static final int SCHEDULING_PINNED_WORKERS = 1;
+    protected static final int SCHEDULING_COST_AWARE = 2;
+
+    /** Weight of the newest measurement in the running member cost estimates */
+    protected static final double COST_SMOOTHING = 0.2;
+
+    /** Instances every parallelism level is timed on when the adaptive core count explores */
+    protected static final int ADAPTIVE_TRIAL_INSTANCES = 100;
+
 
     /** The amount of CPU cores to be run in parallel */
     public int _numOfCores;
-    /** _cpuTime stores the total time the program has been running on the cores */
-    protected AtomicInteger _cpuTime;
-    /** start time used in threads to measure the start of the training program in parallel */
-    protected double _t1;
+    /** CPU time in nanoseconds spent training, summed over every thread; striped so workers do not contend */
+    protected LongAdder _trainCpuTime;
+    /** CPU time in nanoseconds spent predicting, summed over every thread */
+    protected LongAdder _predictCpuTime;
+
+    private static final ThreadMXBean THREAD_MX_BEAN = ManagementFactory.getThreadMXBean();
+    private static final boolean THREAD_CPU_TIME_SUPPORTED = THREAD_MX_BEAN.isCurrentThreadCpuTimeSupported();
+
+    static {
+        if (THREAD_CPU_TIME_SUPPORTED && !THREAD_MX_BEAN.isThreadCpuTimeEnabled()) {
+            THREAD_MX_BEAN.setThreadCpuTimeEnabled(true);
+        }
+    }
+
+    /** Not serialised; copies start their own at resetLearning() or on first use */
+    protected transient ExecutionBackend _backend;
+
+    /** Votes of member i at the last gatherVotes call, kept for takeVotes */
+    protected transient double[][] _cachedVotes;
+    /** Instance _cachedVotes[i] was computed for, or null once member i has been trained since */
+    protected transient Instance[] _votedInstance;
+    /** Value of _instancesStarted when _cachedVotes[i] was computed */
+    protected transient long[] _votedAt;
+    /** Calls of trainOnInstance so far, counted as each starts; stamps the cached votes */
+    protected transient volatile long _instancesStarted;
+    /** Scratch arrays of every thread that predicts, created on first use */
+    private transient volatile ThreadLocal<VoteBuffers> _voteBuffers;
+
+    /** Worker threads that own the members when the PinnedWorkers scheduling is used, started lazily */
+    protected transient MemberWorker[] _workers;
+
+    /** One random stream per member, split from the seed so a member draws the same numbers on any thread */
+    protected MemberRandom[] _memberRandom;
+
+    /** Running estimate of the nanoseconds every member takes per task, for the CostAware scheduling */
+    protected transient double[] _memberCost;
+    /** Member indices 0..n-1, passed by forEachMember(n, task) */
+    private transient int[] _allMembers;
+
+    /** Task counts and busy time of the threads member tasks run on; not serialised, restarted by copies */
+    protected transient PoolStatistics _poolStatistics;
 
-    protected ForkJoinPool _threadpool;
+    /** Reusable training view of every member, one per member so members never share one across threads */
+    protected transient WeightedInstanceView[] _memberViews;
+
+    /** Members of the last estimatedByteSize() call, with the structure and size they were last measured at */
+    protected transient Classifier[] _sizedMembers;
+    protected transient long[] _sizedStructure;
+    protected transient long[] _sizedBytes;
+    /** Background learners dropped and members reset to keep to the memory budget since the last reset */
+    protected long _shedBackgroundLearners;
+    protected long _shedMembers;
+    /** Members measured by estimatedByteSize() since the last reset */
+    protected transient long _memberSizeMeasurements;
+
+    /** Most member tasks forEachMember runs at once: coreSize, or the common pool and the caller for coreSize 0 */
+    protected int _maxParallelism;
+    /** Member tasks forEachMember runs at once now; below _maxParallelism only with an adaptive core count */
+    protected int _parallelism;
+    /** Parallelism levels the adaptive core count chooses from, 1 and doubling up to _maxParallelism, or null */
+    protected int[] _adaptiveLevels;
+    /** Wall time in nanoseconds per trained instance, prediction included, at every level when last timed */
+    protected double[] _adaptiveLevelNanos;
+    /** Index of the level being timed, or -1 while the chosen level is used */
+    protected int _adaptiveTrial;
+    /** Wall time and instances of the current trial */
+    protected long _adaptiveTrialNanos;
+    protected int _adaptiveTrialInstances;
+    /** Instances left before the next exploration */
+    protected long _adaptiveCountdown;
+    /** Level chosen by the last exploration, and the level before the last switch */
+    protected int _adaptiveChosen;
+    protected int _adaptivePrevious;
+    protected long _adaptiveInstancesSeen;
+    protected long _adaptiveExplorations;
+    protected long _adaptiveSwitches;
+    /** Instances seen when the chosen level last changed */
+    protected long _adaptiveLastSwitch;
 
 
     /**
@@ -62,15 +185,69 @@ public abstract class AbstractClassifierParallel extends AbstractClassifier
 
     public abstract void trainOnInstanceImpl(Instance inst);
 
-    public void trainingHasEnded(){ if(_threadpool != null)_threadpool.shutdown(); }
+    public abstract double[] getVotesForInstanceImpl(Instance inst);
+
+    /**
+     * Trains the member at index on inst, drawing its resampling weight from _memberRandom[index].
+     * Called from the worker threads; calls for the same member never overlap.
+     */
+    protected abstract void trainMember(int index, Instance inst);
+
+    public void trainingHasEnded(){
+        stopBackgroundTraining();
+        stopWorkers();
+        if (_backend != null) {
+            _backend.shutdown();
+            _backend = null;
+        }
+    }
+
+    @Override
+    public void trainOnInstance(Instance inst) {
+        long start = threadCpuTime();
+        long wallStart = _adaptiveLevels != null ? System.nanoTime() : 0L;
+        enterPhase(_trainCpuTime);
+        _instancesStarted++;
+        if (_memberViews == null && _memberRandom != null) {
+            _memberViews = new WeightedInstanceView[_memberRandom.length];
+        }
+        super.trainOnInstance(inst);
+        _trainCpuTime.add(threadCpuTime() - start);
+        if (_adaptiveLevels != null) adaptParallelism(System.nanoTime() - wallStart);
+    }
+
+    @Override
+    public double[] getVotesForInstance(Instance inst) {
+        long start = threadCpuTime();
+        long wallStart = _adaptiveLevels != null ? System.nanoTime() : 0L;
+        enterPhase(_predictCpuTime);
+        double[] votes = getVotesForInstanceImpl(inst);
+        _predictCpuTime.add(threadCpuTime() - start);
+        if (_adaptiveLevels != null) _adaptiveTrialNanos += System.nanoTime() - wallStart;
+        return votes;
+    }
 
     @Override
     public void resetLearning() {
-        _cpuTime = new AtomicInteger();
-        _numOfCores = _amountOfCores.getValue();
-        if(_numOfCores > 1){
-            _threadpool = new ForkJoinPool(_numOfCores);
+        // whatever trains on the workers or the backend stops before they are torn down
+        stopBackgroundTraining();
+        stopWorkers();
+        _trainCpuTime = new LongAdder();
+        _predictCpuTime = new LongAdder();
+        if (_backend != null) {
+            _backend.shutdown();
+            _backend = null;
         }
+        _numOfCores = coreSize();
+        _maxParallelism = _numOfCores == 1 ? 1 : backend().parallelism();
+        _poolStatistics = null;
+        _sizedMembers = null;
+        forgetVotes();
+        _memberSizeMeasurements = 0;
+        _shedBackgroundLearners = 0;
+        _shedMembers = 0;
+        _parallelism = _maxParallelism;
+        initAdaptiveParallelism();
         this.trainingWeightSeenByModel = 0.0;
         if (isRandomizable()) {
             this.classifierRandom = new Random(this.randomSeed);
@@ -78,12 +255,1068 @@ public abstract class AbstractClassifierParallel extends AbstractClassifier
         resetLearningImpl();
     }
 
+    /**
+     * Stops training that runs on a thread of the learner's own and still uses the workers or the backend,
+     * waiting for it to finish; called by resetLearning() and trainingHasEnded() before those are torn down.
+     * Nothing by default.
+     */
+    protected void stopBackgroundTraining() {
+    }
+
+    /** Number of cores to run on, read at resetLearning(); the coreSize option unless a learner maps its own. */
+    protected int coreSize() {
+        return _amountOfCores.getValue();
+    }
+
+    /** The started execution backend, starting one from the executionBackend option if there is none yet. */
+    protected ExecutionBackend backend() {
+        if (_backend == null) {
+            ExecutionBackend backend = (ExecutionBackend) ((ExecutionBackend) getPreparedClassOption(_executionBackendOption)).copy();
+            backend.start(_numOfCores);
+            _backend = backend;
+        }
+        return _backend;
+    }
+
+    /**
+     * Sets up the adaptive core count when adaptivePeriod is set. The first exploration starts right away,
+     * as the best level early in a stream, when the members are small, is often serial.
+     */
+    protected void initAdaptiveParallelism() {
+        _adaptiveLevels = null;
+        if (_adaptivePeriodOption.getValue() == 0 || _maxParallelism <= 1
+                || _schedulingOption.getChosenIndex() == SCHEDULING_PINNED_WORKERS) {
+            return;
+        }
+        int numLevels = 1;
+        for (int level = 1; level < _maxParallelism; level *= 2) numLevels++;
+        _adaptiveLevels = new int[numLevels];
+        for (int i = 0; i < numLevels - 1; i++) _adaptiveLevels[i] = 1 << i;
+        _adaptiveLevels[numLevels - 1] = _maxParallelism;
+        _adaptiveLevelNanos = new double[numLevels];
+        _adaptiveChosen = _maxParallelism;
+        _adaptivePrevious = _maxParallelism;
+        _adaptiveInstancesSeen = 0;
+        _adaptiveExplorations = 0;
+        _adaptiveSwitches = 0;
+        _adaptiveLastSwitch = 0;
+        startAdaptiveTrial(0);
+    }
+
+    /**
+     * Called after every trained instance with its training wall time. Explores by timing every level on
+     * ADAPTIVE_TRIAL_INSTANCES instances in turn, then keeps the fastest for adaptivePeriod instances.
+     * Members are independent of how they are spread over threads, so switching never changes the results.
+     */
+    private void adaptParallelism(long trainNanos) {
+        _adaptiveInstancesSeen++;
+        if (_adaptiveTrial < 0) {
+            if (--_adaptiveCountdown <= 0) {
+                _adaptiveExplorations++;
+                startAdaptiveTrial(0);
+            }
+            return;
+        }
+        _adaptiveTrialNanos += trainNanos;
+        if (++_adaptiveTrialInstances < ADAPTIVE_TRIAL_INSTANCES) return;
+        _adaptiveLevelNanos[_adaptiveTrial] = (double) _adaptiveTrialNanos / _adaptiveTrialInstances;
+        if (_adaptiveTrial + 1 < _adaptiveLevels.length) {
+            startAdaptiveTrial(_adaptiveTrial + 1);
+            return;
+        }
+        int fastest = 0;
+        for (int i = 1; i < _adaptiveLevels.length; i++) {
+            if (_adaptiveLevelNanos[i] < _adaptiveLevelNanos[fastest]) fastest = i;
+        }
+        if (_adaptiveLevels[fastest] != _adaptiveChosen) {
+            _adaptivePrevious = _adaptiveChosen;
+            _adaptiveChosen = _adaptiveLevels[fastest];
+            _adaptiveSwitches++;
+            _adaptiveLastSwitch = _adaptiveInstancesSeen;
+        }
+        _parallelism = _adaptiveChosen;
+        _adaptiveTrial = -1;
+        _adaptiveCountdown = _adaptivePeriodOption.getValue();
+    }
+
+    private void startAdaptiveTrial(int index) {
+        _adaptiveTrial = index;
+        _parallelism = _adaptiveLevels[index];
+        _adaptiveTrialNanos = 0;
+        _adaptiveTrialInstances = 0;
+    }
+
+    /**
+     * Adds the pool statistics and the measurements of the execution backend when coreSize is not 1 and, when
+     * adaptivePeriod is set, the chosen parallelism level, its switch history and the last time per instance of
+     * every level. Every parallel learner reports them, so they appear as columns of the learning curve, as
+     * well as the number of member size measurements once estimatedByteSize() has been used and what was shed
+     * when memoryBudget is set.
+     */
+    @Override
+    public Measurement[] getModelMeasurements() {
+        Measurement[] measurements = super.getModelMeasurements();
+        if (_numOfCores != 1) {
+            measurements = append(measurements, poolStatistics().getMeasurements());
+            ExecutionBackend backend = _backend;
+            if (backend != null) measurements = append(measurements, backend.getMeasurements());
+        }
+        if (_sizedMembers != null) {
+            measurements = append(measurements, new Measurement[]{
+                    new Measurement("member size measurements", _memberSizeMeasurements)});
+        }
+        if (_memoryBudgetOption.getValue() > 0) {
+            measurements = append(measurements, new Measurement[]{
+                    new Measurement("background learners dropped for memory", _shedBackgroundLearners),
+                    new Measurement("members reset for memory", _shedMembers)});
+        }
+        int[] levels = _adaptiveLevels;
+        if (levels == null) return measurements;
+        int size = measurements.length;
+        measurements = Arrays.copyOf(measurements, size + 5 + levels.length);
+        measurements[size++] = new Measurement("parallelism level", _adaptiveChosen);
+        measurements[size++] = new Measurement("parallelism explorations", _adaptiveExplorations);
+        measurements[size++] = new Measurement("parallelism switches", _adaptiveSwitches);
+        measurements[size++] = new Measurement("parallelism level before last switch", _adaptivePrevious);
+        measurements[size++] = new Measurement("instances at last parallelism switch", _adaptiveLastSwitch);
+        for (int i = 0; i < levels.length; i++) {
+            measurements[size++] = new Measurement("time per instance at parallelism " + levels[i] + " (microseconds)",
+                    _adaptiveLevelNanos[i] / 1000.0);
+        }
+        return measurements;
+    }
+
+    /**
+     * Size of the model in bytes, kept up to date one member of sizedMembers() at a time as the sum of their
+     * measureByteSize(), which for a HoeffdingTree adds up its nodes rather than walking all of its objects. A
+     * member is measured again only when it is replaced or its structure changes, which for a HoeffdingTree is
+     * when its node count changes, after a split or reset; members without such a signature are measured every
+     * time. Learners without sized members fall back to measureByteSize() of the whole model.
+     */
+    public long estimatedByteSize() {
+        awaitWorkers();
+        Classifier[] members = sizedMembers();
+        if (members == null) return measureByteSize();
+        if (_sizedMembers == null || _sizedMembers.length != members.length) {
+            _sizedMembers = new Classifier[members.length];
+            _sizedStructure = new long[members.length];
+            _sizedBytes = new long[members.length];
+        }
+        long bytes = 0;
+        for (int i = 0; i < members.length; i++) {
+            Classifier member = members[i];
+            long structure = structureOf(member);
+            if (member != _sizedMembers[i] || structure < 0 || structure != _sizedStructure[i]) {
+                _sizedBytes[i] = member == null ? 0 : member.measureByteSize();
+                _sizedMembers[i] = member;
+                _sizedStructure[i] = structure;
+                _memberSizeMeasurements++;
+            }
+            bytes += _sizedBytes[i];
+        }
+        return bytes;
+    }
+
+    /**
+     * Members a checkpoint serialises on their own, in parallel, and the rest of the learner refers to: those of
+     * sizedMembers() that are present. Waits for the members' tasks first, so they are not changed while written.
+     */
+    public Classifier[] checkpointMembers() {
+        awaitWorkers();
+        Classifier[] members = sizedMembers();
+        if (members == null) return new Classifier[0];
+        int count = 0;
+        for (Classifier member : members) if (member != null) count++;
+        Classifier[] present = new Classifier[count];
+        count = 0;
+        for (Classifier member : members) if (member != null) present[count++] = member;
+        return present;
+    }
+
+    /**
+     * Sheds memory while the estimated size of the model is over the memoryBudget option: first every background
+     * learner is dropped, then members are reset one at a time, in the order memberToShed() picks them, each at
+     * most once. Called by the evaluation tasks between instances.
+     *
+     * @return the estimated size of the model in bytes after shedding, or -1 if there is no budget
+     */
+    public long enforceMemoryBudget() {
+        long budget = _memoryBudgetOption.getValue() * 1024L * 1024L;
+        if (budget == 0) return -1;
+        long size = estimatedByteSize();
+        if (size <= budget) return size;
+        int dropped = dropBackgroundLearners();
+        if (dropped > 0) {
+            _shedBackgroundLearners += dropped;
+            size = estimatedByteSize();
+        }
+        Classifier[] members = getSubClassifiers();
+        boolean[] shed = new boolean[members == null ? 0 : members.length];
+        while (size > budget) {
+            int index = memberToShed(shed);
+            if (index < 0) break;
+            shed[index] = true;
+            resetMember(index);
+            _shedMembers++;
+            size = estimatedByteSize();
+        }
+        // members may have changed since their votes were cached
+        forgetVotes();
+        return size;
+    }
+
+    /** Drops every background learner for the memory budget, returning how many there were; none by default. */
+    protected int dropBackgroundLearners() {
+        return 0;
+    }
+
+    /**
+     * Member of getSubClassifiers() to reset next for the memory budget, or -1 if none is left; the largest member
+     * not reset yet, as last estimated.
+     */
+    protected int memberToShed(boolean[] shed) {
+        int largest = -1;
+        for (int i = 0; i < shed.length; i++) {
+            if (shed[i] || _sizedBytes == null || i >= _sizedBytes.length) continue;
+            if (largest < 0 || _sizedBytes[i] > _sizedBytes[largest]) largest = i;
+        }
+        return largest;
+    }
+
+    /** Resets member index for the memory budget, as the ensemble does when the member is replaced. */
+    protected void resetMember(int index) {
+        getSubClassifiers()[index].resetLearning();
+    }
+
+    /** Members the model size is estimated from, null entries for absent ones; the sub-classifiers by default. */
+    protected Classifier[] sizedMembers() {
+        return getSubClassifiers();
+    }
+
+    /** Number that changes whenever the structure of member changes, or -1 if there is none. */
+    protected static long structureOf(Classifier member) {
+        if (member == null) return 0;
+        if (member instanceof HoeffdingTree) return (long) memberMeasurement(member, "tree size (nodes)");
+        return -1;
+    }
+
+    /**
+     * Value of the measurement named name among the model measurements of member, or -1 if it has none. Read
+     * from getModelMeasurementsImpl(), which AbstractClassifier declares in this package, rather than from
+     * getModelMeasurements(), which would also measure the member's byte size.
+     */
+    protected static double memberMeasurement(Classifier member, String name) {
+        if (!(member instanceof AbstractClassifier)) return -1;
+        Measurement[] measurements = ((AbstractClassifier) member).getModelMeasurementsImpl();
+        Measurement measurement = measurements == null ? null : Measurement.getMeasurementNamed(name, measurements);
+        return measurement == null ? -1 : measurement.getValue();
+    }
+
+    private static Measurement[] append(Measurement[] measurements, Measurement[] more) {
+        int size = measurements.length;
+        measurements = Arrays.copyOf(measurements, size + more.length);
+        System.arraycopy(more, 0, measurements, size, more.length);
+        return measurements;
+    }
+
+    /**
+     * Splits one random stream per member off seed. Member i always gets the same stream, so results
+     * do not depend on how members are spread over threads.
+     */
+    protected void initMemberRandom(int ensembleSize, long seed) {
+        MemberRandom root = new MemberRandom(seed);
+        _memberRandom = new MemberRandom[ensembleSize];
+        _memberViews = new WeightedInstanceView[ensembleSize];
+        for (int i = 0; i < ensembleSize; i++) {
+            _memberRandom[i] = root.split();
+        }
+    }
+
+    /**
+     * inst as member index should be trained on it, with the given weight. Returns the member's reusable
+     * view, valid until the member's next call, or a full copy when copyInstances is set.
+     */
+    protected Instance memberInstance(int index, Instance inst, double weight) {
+        if (_copyInstancesOption.isSet()) {
+            Instance copy = inst.copy();
+            copy.setWeight(weight);
+            return copy;
+        }
+        return memberView(index).set(inst, weight);
+    }
+
+    /** As memberInstance(index, inst, weight), with the class value replaced by classValue. */
+    protected Instance memberInstance(int index, Instance inst, double weight, double classValue) {
+        if (_copyInstancesOption.isSet()) {
+            Instance copy = inst.copy();
+            copy.setWeight(weight);
+            copy.setClassValue(classValue);
+            return copy;
+        }
+        return memberView(index).set(inst, weight, classValue);
+    }
+
+    private WeightedInstanceView memberView(int index) {
+        // only member index touches its slot, so creating it lazily needs no locking
+        WeightedInstanceView view = _memberViews[index];
+        if (view == null) {
+            view = new WeightedInstanceView();
+            _memberViews[index] = view;
+        }
+        return view;
+    }
+
+    /** Same sampler as MiscUtils.poisson, drawing from a member stream instead of a java.util.Random. */
+    protected static int poisson(double lambda, MemberRandom r) {
+        if (lambda < 100.0) {
+            double product = 1.0;
+            double sum = 1.0;
+            double threshold = r.nextDouble() * Math.exp(lambda);
+            int i = 1;
+            int max = Math.max(100, 10 * (int) Math.ceil(lambda));
+            while ((i < max) && (sum <= threshold)) {
+                product *= (lambda / i);
+                sum += product;
+                i++;
+            }
+            return i - 1;
+        }
+        double x = lambda + Math.sqrt(lambda) * r.nextGaussian();
+        if (x < 0.0) {
+            return 0;
+        }
+        return (int) Math.floor(x);
+    }
+
+    /**
+     * Runs task for every ensemble member index in [0, n) and returns once all of them are done.
+     * Runs serially when coreSize is 1 and on the execution backend otherwise.
+     * With an adaptive core count, runs serially or on at most _parallelism threads of those.
+     */
+    protected void forEachMember(int n, IntConsumer task) {
+        if (_allMembers == null || _allMembers.length != n) {
+            _allMembers = new int[n];
+            for (int i = 0; i < n; i++) _allMembers[i] = i;
+        }
+        forEachMember(_allMembers, n, task);
+    }
+
+    /**
+     * Runs task for the members members[0..count-1] only, for example those with a non-zero weight,
+     * and returns once all of them are done. Scheduled like forEachMember(n, task).
+     */
+    protected void forEachMember(int[] members, int count, IntConsumer task) {
+        if (_numOfCores == 1 || _parallelism == 1) {
+            for (int j = 0; j < count; j++) task.accept(members[j]);
+        } else if (_schedulingOption.getChosenIndex() == SCHEDULING_COST_AWARE) {
+            forEachPacked(members, count, task);
+        } else {
+            inParallel(count, j -> task.accept(members[j]));
+        }
+    }
+
+    /**
+     * Runs task(0..count-1) in parallel on the execution backend. The call is a barrier; the thread time it
+     * makes available beyond what the tasks use is counted as idle in the pool statistics.
+     */
+    private void inParallel(int count, IntConsumer task) {
+        PoolStatistics statistics = poolStatistics();
+        long start = System.nanoTime();
+        int threads;
+        if (_parallelism < _maxParallelism && _parallelism < count) {
+            // an adaptive level below the pool size: one contiguous chunk of tasks per thread
+            int chunks = _parallelism;
+            threads = chunks;
+            backend().invokeAll(chunks, timedOnWorkers(c -> {
+                for (int j = c * count / chunks, end = (c + 1) * count / chunks; j < end; j++) task.accept(j);
+            }));
+        } else {
+            threads = Math.min(count, _maxParallelism);
+            backend().invokeAll(count, timedOnWorkers(task));
+        }
+        statistics.barrier(threads, System.nanoTime() - start);
+    }
+
+    private PoolStatistics poolStatistics() {
+        PoolStatistics statistics = _poolStatistics;
+        if (statistics == null) {
+            statistics = new PoolStatistics();
+            _poolStatistics = statistics;
+        }
+        return statistics;
+    }
+
+    /**
+     * CostAware scheduling: packs the members into one bin per core, longest-processing-time first, so a few
+     * large members do not leave the other cores waiting, and runs every bin as one task. The time every member
+     * takes is fed back into its running cost estimate.
+     */
+    private void forEachPacked(int[] members, int count, IntConsumer task) {
+        int maxMember = 0;
+        for (int j = 0; j < count; j++) maxMember = Math.max(maxMember, members[j]);
+        if (_memberCost == null || _memberCost.length <= maxMember) {
+            _memberCost = _memberCost == null ? new double[maxMember + 1] : Arrays.copyOf(_memberCost, maxMember + 1);
+        }
+        int numBins = Math.max(1, Math.min(_parallelism, count));
+
+        // the packing is scratch of the calling thread, as a learner may train in the background while it predicts
+        VoteBuffers buffers = voteBuffers();
+        if (buffers.costOrder.length < count) {
+            buffers.costOrder = new int[count];
+            buffers.binMembers = new int[count];
+            buffers.binOf = new int[count];
+        }
+        if (buffers.binLoad.length < numBins) {
+            buffers.binLoad = new double[numBins];
+            buffers.binStart = new int[numBins + 1];
+            buffers.binFill = new int[numBins];
+        }
+        double[] cost = _memberCost;
+        int[] order = buffers.costOrder;
+        System.arraycopy(members, 0, order, 0, count);
+        // insertion sort, cheap as the order changes little from one instance to the next
+        for (int j = 1; j < count; j++) {
+            int member = order[j];
+            double c = cost[member];
+            int k = j - 1;
+            while (k >= 0 && cost[order[k]] < c) {
+                order[k + 1] = order[k];
+                k--;
+            }
+            order[k + 1] = member;
+        }
+
+        // every member goes to the bin with the least expected load so far
+        double[] load = buffers.binLoad;
+        int[] binStart = buffers.binStart;
+        int[] binOf = buffers.binOf;
+        Arrays.fill(load, 0, numBins, 0.0);
+        Arrays.fill(binStart, 0, numBins + 1, 0);
+        for (int j = 0; j < count; j++) {
+            int bin = 0;
+            for (int b = 1; b < numBins; b++) {
+                if (load[b] < load[bin]) bin = b;
+            }
+            // a member with no estimate yet still takes some time
+            load[bin] += Math.max(cost[order[j]], 1.0);
+            binOf[j] = bin;
+            binStart[bin + 1]++;
+        }
+        for (int b = 0; b < numBins; b++) binStart[b + 1] += binStart[b];
+        int[] binMembers = buffers.binMembers;
+        int[] fill = buffers.binFill;
+        Arrays.fill(fill, 0, numBins, 0);
+        for (int j = 0; j < count; j++) {
+            int bin = binOf[j];
+            binMembers[binStart[bin] + fill[bin]++] = order[j];
+        }
+
+        inParallel(numBins, b -> {
+            for (int j = binStart[b]; j < binStart[b + 1]; j++) {
+                int member = binMembers[j];
+                long start = System.nanoTime();
+                task.accept(member);
+                double elapsed = System.nanoTime() - start;
+                // a member is in one bin only, so its estimate has a single writer
+                cost[member] = cost[member] == 0.0 ? elapsed : cost[member] + COST_SMOOTHING * (elapsed - cost[member]);
+            }
+        });
+    }
+
+    /**
+     * Makes counter the one that member tasks started by the calling thread add their CPU time to, until its next
+     * call. The phase is kept per thread, so a thread training in the background does not take over the counter
+     * of a thread predicting.
+     */
+    protected void enterPhase(LongAdder counter) {
+        voteBuffers().phaseCpuTime = counter;
+    }
+
+    /**
+     * Wraps a member task so the CPU time it uses on a worker thread is added to the calling thread's phase
+     * counter. Work the calling thread does itself is already covered by its own measurement. Every task is
+     * also counted, with its wall time, in the pool statistics of the thread it runs on.
+     */
+    protected IntConsumer timedOnWorkers(IntConsumer task) {
+        LongAdder phase = voteBuffers().phaseCpuTime;
+        LongAdder counter = phase != null ? phase : _trainCpuTime;
+        Thread caller = Thread.currentThread();
+        PoolStatistics statistics = poolStatistics();
+        return i -> {
+            long wallStart = System.nanoTime();
+            if (Thread.currentThread() == caller) {
+                task.accept(i);
+            } else {
+                long start = threadCpuTime();
+                task.accept(i);
+                counter.add(threadCpuTime() - start);
+            }
+            statistics.task(System.nanoTime() - wallStart);
+        };
+    }
+
+    /**
+     * How the threads running member tasks are used: tasks per thread, and the thread time every barrier
+     * makes available against the time the tasks take. Every thread counts into a cell of its own, held in a
+     * ThreadLocal and registered by a weak reference to the thread. Common pool workers drop their ThreadLocals
+     * after every task, so a thread missing its cell looks it up again; the cells of threads that have ended,
+     * such as those of the VirtualThreadBackend, are folded into totals at the next registration, so the
+     * registry only grows with the threads alive at once.
+     */
+    protected static final class PoolStatistics {
+        /** Task count and busy nanoseconds of the calling thread, added by that thread only */
+        private final ThreadLocal<long[]> _cell = new ThreadLocal<>();
+        /** Cells of the threads that ran tasks and had not ended at the last registration */
+        private final List<Cell> _cells = new ArrayList<>();
+        /** Threads that have ended, the tasks and busy nanoseconds they took, and their least and most tasks */
+        private long _endedThreads;
+        private long _endedTasks;
+        private long _endedBusyNanos;
+        private long _endedMinTasks = Long.MAX_VALUE;
+        private long _endedMaxTasks;
+        /** Barriers, and thread nanoseconds they made available; added by every thread that schedules members */
+        private final LongAdder _barriers = new LongAdder();
+        private final LongAdder _availableNanos = new LongAdder();
+
+        private static final class Cell {
+            final WeakReference<Thread> thread;
+            final long[] counts = new long[2];
+
+            Cell(Thread thread) {
+                this.thread = new WeakReference<>(thread);
+            }
+        }
+
+        void task(long nanos) {
+            long[] cell = _cell.get();
+            if (cell == null) {
+                cell = register(Thread.currentThread());
+                _cell.set(cell);
+            }
+            cell[0]++;
+            cell[1] += nanos;
+        }
+
+        /** The cell of thread, registered if it has none yet; folds in the cells of threads that have ended. */
+        private synchronized long[] register(Thread thread) {
+            long[] found = null;
+            for (Iterator<Cell> it = _cells.iterator(); it.hasNext(); ) {
+                Cell cell = it.next();
+                Thread owner = cell.thread.get();
+                if (owner == thread) {
+                    found = cell.counts;
+                } else if (owner == null || !owner.isAlive()) {
+                    long tasks = cell.counts[0];
+                    _endedThreads++;
+                    _endedTasks += tasks;
+                    _endedBusyNanos += cell.counts[1];
+                    _endedMinTasks = Math.min(_endedMinTasks, tasks);
+                    _endedMaxTasks = Math.max(_endedMaxTasks, tasks);
+                    it.remove();
+                }
+            }
+            if (found == null) {
+                Cell cell = new Cell(thread);
+                _cells.add(cell);
+                found = cell.counts;
+            }
+            return found;
+        }
+
+        void barrier(int threads, long wallNanos) {
+            _barriers.increment();
+            _availableNanos.add(threads * wallNanos);
+        }
+
+        /** Barriers, threads used, mean, least and most tasks per thread, and mean idle time per barrier. */
+        synchronized Measurement[] getMeasurements() {
+            long tasks = _endedTasks;
+            long busyNanos = _endedBusyNanos;
+            long minTasks = _endedMinTasks;
+            long maxTasks = _endedMaxTasks;
+            long threads = _endedThreads;
+            for (Cell cell : _cells) {
+                long cellTasks = cell.counts[0];
+                tasks += cellTasks;
+                busyNanos += cell.counts[1];
+                minTasks = Math.min(minTasks, cellTasks);
+                maxTasks = Math.max(maxTasks, cellTasks);
+                threads++;
+            }
+            long barriers = _barriers.sum();
+            double idleNanos = Math.max(0L, _availableNanos.sum() - busyNanos);
+            return new Measurement[]{
+                    new Measurement("parallel barriers", barriers),
+                    new Measurement("threads used", threads),
+                    new Measurement("tasks per thread (mean)", threads > 0 ? (double) tasks / threads : 0.0),
+                    new Measurement("tasks per thread (min)", threads > 0 ? minTasks : 0),
+                    new Measurement("tasks per thread (max)", maxTasks),
+                    new Measurement("idle time per barrier (microseconds)",
+                            barriers > 0 ? idleNanos / barriers / 1000.0 : 0.0)};
+        }
+    }
+
+    /** CPU time of the calling thread in nanoseconds, from its ThreadMXBean counter where the JVM supports it. */
+    protected static long threadCpuTime() {
+        return THREAD_CPU_TIME_SUPPORTED ? THREAD_MX_BEAN.getCurrentThreadCpuTime() : System.nanoTime();
+    }
+
+    /**
+     * Collects the votes of members 0..n-1 on inst through forEachMember, so members are queried in parallel unless
+     * coreSize is 1. Slot i of the returned array holds the votes of member i; the array belongs to the calling
+     * thread and is reused by its next call. The votes are also remembered, so training on the same instance can
+     * take them instead of predicting again.
+     */
+    protected double[][] gatherVotes(int n, Instance inst, IntFunction<double[]> memberVotes) {
+        if (_votedInstance == null || _votedInstance.length != n) {
+            _cachedVotes = new double[n][];
+            _votedInstance = new Instance[n];
+            _votedAt = new long[n];
+        }
+        VoteBuffers buffers = voteBuffers();
+        if (buffers.memberVotes.length != n) buffers.memberVotes = new double[n][];
+        double[][] votes = buffers.memberVotes;
+        double[][] cachedVotes = _cachedVotes;
+        Instance[] votedInstance = _votedInstance;
+        long[] votedAt = _votedAt;
+        long stamp = _instancesStarted;
+        forEachMember(n, i -> {
+            double[] vote = memberVotes.apply(i);
+            votes[i] = vote;
+            cachedVotes[i] = vote;
+            votedInstance[i] = inst;
+            votedAt[i] = stamp;
+        });
+        return votes;
+    }
+
+    /**
+     * The votes member index gave on inst at the last gatherVotes call, or null if they were for another instance
+     * or already taken. Called by trainMember before it trains the member, so the votes are never reused once the
+     * member has changed. The instance is matched by identity and by the training calls made since: the votes
+     * are only taken while training the instance that was the next one after them, so a stream that reuses its
+     * Instance object for the following instances does not get stale votes. The returned array must not be
+     * modified.
+     */
+    protected double[] takeVotes(int index, Instance inst) {
+        Instance[] votedInstance = _votedInstance;
+        if (votedInstance == null || index >= votedInstance.length || votedInstance[index] != inst) return null;
+        votedInstance[index] = null;
+        return _votedAt[index] + 1 == _instancesStarted ? _cachedVotes[index] : null;
+    }
+
+    /**
+     * Forgets the votes of the last gatherVotes call. Called before members are trained on other instances
+     * first, as in a mini-batch, after which a vote on the predicted instance no longer matches the member.
+     */
+    protected void forgetVotes() {
+        if (_votedInstance != null) Arrays.fill(_votedInstance, null);
+    }
 
+    /** The calling thread's array of n member weights for combineVotes; its contents are left from the last call. */
+    protected double[] memberWeights(int n) {
+        VoteBuffers buffers = voteBuffers();
+        if (buffers.weights.length != n) buffers.weights = new double[n];
+        return buffers.weights;
+    }
 
+    /**
+     * Adds up member votes in member order, so the result is the same for every coreSize and identical to
+     * summing DoubleVectors serially. Each vote with a positive sum is normalised and, when weights is not
+     * null, multiplied by weights[i]; other votes are skipped. The result is as long as the longest vote added.
+     * Sums into the calling thread's buffer, so the returned copy is the only allocation.
+     */
+    protected double[] combineVotes(double[][] votes, double[] weights) {
+        VoteBuffers buffers = voteBuffers();
+        int length = 0;
+        for (int i = 0; i < votes.length; i++) {
+            double[] vote = votes[i];
+            if (vote == null) continue;
+            double sum = 0.0;
+            double absSum = 0.0;
+            for (double v : vote) {
+                sum += v;
+                absSum += Math.abs(v);
+            }
+            if (!(sum > 0.0)) continue;
+            if (vote.length > length) {
+                buffers.extend(length, vote.length);
+                length = vote.length;
+            }
+            double[] combined = buffers.sum;
+            double scale = 1.0 / absSum;
+            for (int j = 0; j < vote.length; j++) {
+                double v = vote[j] * scale;
+                if (weights != null) v *= weights[i];
+                combined[j] += v;
+            }
+        }
+        return Arrays.copyOf(buffers.sum, length);
+    }
+
+    /**
+     * Sums the raw member votes in member order and normalises the total by its absolute sum, like adding
+     * DoubleVectors and calling normalize(). Sums into the calling thread's buffer.
+     */
+    protected double[] sumVotes(double[][] votes) {
+        VoteBuffers buffers = voteBuffers();
+        int length = 0;
+        for (double[] vote : votes) {
+            if (vote.length > length) {
+                buffers.extend(length, vote.length);
+                length = vote.length;
+            }
+            double[] combined = buffers.sum;
+            for (int j = 0; j < vote.length; j++) combined[j] += vote[j];
+        }
+        double[] combined = buffers.sum;
+        double absSum = 0.0;
+        for (int j = 0; j < length; j++) absSum += Math.abs(combined[j]);
+        double scale = 1.0 / absSum;
+        for (int j = 0; j < length; j++) combined[j] *= scale;
+        return Arrays.copyOf(combined, length);
+    }
+
+    private VoteBuffers voteBuffers() {
+        ThreadLocal<VoteBuffers> buffers = _voteBuffers;
+        if (buffers == null) {
+            synchronized (this) {
+                buffers = _voteBuffers;
+                if (buffers == null) {
+                    buffers = ThreadLocal.withInitial(VoteBuffers::new);
+                    _voteBuffers = buffers;
+                }
+            }
+        }
+        return buffers.get();
+    }
 
+    /**
+     * Scratch arrays of one thread that predicts or schedules members, and the CPU time counter of its current phase. They belong to one
+     * learner, so nested ensembles on the same thread keep separate buffers.
+     */
+    private static final class VoteBuffers {
+        LongAdder phaseCpuTime;
+        double[][] memberVotes = new double[0][];
+        double[] weights = new double[0];
+        /** Binary predictions of the members for output-code voting, one bit per member */
+        long[] voteBits = new long[0];
+        /** Class totals of the current combination, as long as the longest vote so far */
+        double[] sum = new double[0];
+        /** Members of the current CostAware call ordered by decreasing cost, kept between calls as it changes little */
+        int[] costOrder = new int[0];
+        /** Bin every member of the current call is packed into, and the members of every bin back to back */
+        int[] binOf = new int[0];
+        int[] binMembers = new int[0];
+        int[] binStart = new int[0];
+        int[] binFill = new int[0];
+        double[] binLoad = new double[0];
+
+        /** Makes sum[from, to) zero and available, growing the array to a class-count size on first use. */
+        void extend(int from, int to) {
+            if (sum.length < to) sum = Arrays.copyOf(sum, to);
+            Arrays.fill(sum, from, to, 0.0);
+        }
+    }
+
+    /**
+     * Bit-sliced form of an output-code matrix: bit i of codeBits[j] is codes[i][j], the code of class j for
+     * member i, with 64 members to a word. Used by combineCodeVotes.
+     */
+    protected static long[][] codeBitsets(int[][] codes, int numClasses) {
+        int words = (codes.length + 63) >>> 6;
+        long[][] codeBits = new long[numClasses][words];
+        for (int i = 0; i < codes.length; i++) {
+            for (int j = 0; j < numClasses; j++) {
+                if (codes[i][j] == 1) codeBits[j][i >>> 6] |= 1L << i;
+            }
+        }
+        return codeBits;
+    }
+
+    /**
+     * Output-code voting: member i predicts the binary class argmax(votes[i]) and that prediction counts
+     * one vote for every class j whose code for member i equals it. The binary predictions are packed into a
+     * bitset, so the score of class j is the popcount of the XNOR of that bitset with codeBits[j], a word of
+     * 64 members at a time.
+     */
+    protected double[] combineCodeVotes(double[][] votes, long[][] codeBits, int numClasses) {
+        int words = (votes.length + 63) >>> 6;
+        VoteBuffers buffers = voteBuffers();
+        if (buffers.voteBits.length != words) buffers.voteBits = new long[words];
+        long[] voteBits = buffers.voteBits;
+        Arrays.fill(voteBits, 0L);
+        for (int i = 0; i < votes.length; i++) {
+            double[] vote = votes[i];
+            if (vote.length == 2 && vote[1] > vote[0]) voteBits[i >>> 6] |= 1L << i;
+        }
+        // the bits past the last member are zero in both, so they must not count as agreeing
+        long lastMask = (votes.length & 63) == 0 ? -1L : (1L << votes.length) - 1;
+        double[] combined = new double[numClasses];
+        for (int j = 0; j < numClasses; j++) {
+            long[] code = codeBits[j];
+            int agree = 0;
+            for (int w = 0; w < words - 1; w++) agree += Long.bitCount(~(code[w] ^ voteBits[w]));
+            agree += Long.bitCount(~(code[words - 1] ^ voteBits[words - 1]) & lastMask);
+            combined[j] = agree;
+        }
+        return combined;
+    }
+
+    protected static double sumOf(double[] vote) {
+        double sum = 0.0;
+        for (double v : vote) sum += v;
+        return sum;
+    }
+
+    /** True if training is handed to the member-pinned worker threads instead of forEachMember. */
+    protected boolean usePinnedWorkers() {
+        return _numOfCores != 1 && _schedulingOption.getChosenIndex() == SCHEDULING_PINNED_WORKERS;
+    }
+
+    /**
+     * Queues inst for every one of the ensembleSize members without waiting for it to be trained.
+     * Workers are started on the first call.
+     */
+    protected void dispatchToWorkers(Instance inst, int ensembleSize) {
+        dispatchToWorkers(inst, ensembleSize, 0L);
+    }
+
+    /**
+     * As dispatchToWorkers(inst, ensembleSize), handing the workers stamp along with inst. It reaches
+     * trainDispatchedMember, so state of the training thread, such as an instance count, is read as it was
+     * at the dispatch rather than while the training thread goes on.
+     */
+    protected void dispatchToWorkers(Instance inst, int ensembleSize, long stamp) {
+        if (_workers == null) startWorkers(ensembleSize);
+        for (MemberWorker worker : _workers) worker.offer(inst, stamp);
+    }
+
+    /** Trains member index on inst on a pinned worker, with the stamp inst was dispatched with; trainMember by default. */
+    protected void trainDispatchedMember(int index, Instance inst, long stamp) {
+        trainMember(index, inst);
+    }
+
+    /**
+     * Barrier: returns once every queued instance has been trained, so the members can be read. Throws the first
+     * failure of a worker since the last barrier, as forEachMember throws the failure of a member task.
+     */
+    protected void awaitWorkers() {
+        if (_workers == null) return;
+        for (MemberWorker worker : _workers) worker.await();
+        for (MemberWorker worker : _workers) worker.rethrowFailure();
+    }
+
+    protected void startWorkers(int ensembleSize) {
+        int numWorkers = _numOfCores > 1 ? _numOfCores : Runtime.getRuntime().availableProcessors();
+        numWorkers = Math.max(1, Math.min(numWorkers, ensembleSize));
+        // the workers count against the thread cap of the PoolRegistry, like the threads of the shared pools
+        numWorkers = PoolRegistry.acquireThreads(numWorkers);
+        _workers = new MemberWorker[numWorkers];
+        for (int w = 0; w < numWorkers; w++) {
+            // round robin, so member i always lives on worker i % numWorkers
+            int[] members = new int[(ensembleSize - w + numWorkers - 1) / numWorkers];
+            for (int m = 0; m < members.length; m++) members[m] = w + m * numWorkers;
+            _workers[w] = new MemberWorker(w, members);
+            _workers[w].start();
+        }
+    }
+
+    /** Drains the queues and terminates the worker threads. */
+    protected void stopWorkers() {
+        if (_workers == null) return;
+        for (MemberWorker worker : _workers) worker.shutdown();
+        for (MemberWorker worker : _workers) {
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        MemberWorker[] workers = _workers;
+        _workers = null;
+        PoolRegistry.releaseThreads(workers.length);
+        for (MemberWorker worker : workers) worker.rethrowFailure();
+    }
+
+    /** Spins briefly, then backs off to short parks while waiting on another thread. */
+    private static void backOff(int spins) {
+        if (spins < 256) Thread.yield();
+        else LockSupport.parkNanos(20000);
+    }
+
+    /**
+     * A thread that owns a fixed set of members and trains them, in arrival order, on the instances
+     * of its single-producer/single-consumer ring buffer. Only the learner's training thread produces.
+     */
+    protected class MemberWorker extends Thread {
+
+        private static final int CAPACITY = 1024;
+
+        private final int[] _members;
+        private final Instance[] _instances = new Instance[CAPACITY];
+        private final long[] _stamps = new long[CAPACITY];
+        /** Number of messages consumed, only written by the worker */
+        private volatile long _head;
+        /** Number of messages produced, only written by the producer */
+        private volatile long _tail;
+        private volatile boolean _running = true;
+        /** First failure training a member, kept until the next barrier rethrows it */
+        private volatile Throwable _failure;
+
+        MemberWorker(int id, int[] members) {
+            super("MemberWorker-" + id);
+            setDaemon(true);
+            _members = members;
+        }
+
+        void offer(Instance inst, long stamp) {
+            long tail = _tail;
+            for (int spins = 0; tail - _head == CAPACITY; spins++) backOff(spins);
+            int slot = (int) (tail % CAPACITY);
+            _instances[slot] = inst;
+            _stamps[slot] = stamp;
+            _tail = tail + 1;
+            LockSupport.unpark(this);
+        }
+
+        void await() {
+            for (int spins = 0; _head != _tail; spins++) backOff(spins);
+        }
+
+        void rethrowFailure() {
+            Throwable failure = _failure;
+            if (failure == null) return;
+            _failure = null;
+            if (failure instanceof Error) throw (Error) failure;
+            throw new RuntimeException("Training a member failed on " + getName(), failure);
+        }
+
+        void shutdown() {
+            _running = false;
+            LockSupport.unpark(this);
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                long head = _head;
+                if (head == _tail) {
+                    if (!_running) return;
+                    LockSupport.parkNanos(this, 100000);
+                    continue;
+                }
+                int slot = (int) (head % CAPACITY);
+                Instance inst = _instances[slot];
+                long stamp = _stamps[slot];
+                long start = threadCpuTime();
+                for (int m = 0; m < _members.length; m++) {
+                    try {
+                        trainDispatchedMember(_members[m], inst, stamp);
+                    } catch (Throwable t) {
+                        // the queue is still drained, so the barrier returns and rethrows the failure
+                        if (_failure == null) _failure = t;
+                    }
+                }
+                _trainCpuTime.add(threadCpuTime() - start);
+                _instances[slot] = null;
+                _head = head + 1;
+            }
+        }
+    }
+
+    /**
+     * SplitMix64 generator, the algorithm behind java.util.SplittableRandom, kept Serializable so
+     * learners holding member streams can still be copied. As in SplittableRandom, a split stream gets
+     * its own odd gamma, mixed from its parent, so split streams do not step through the same sequence.
+     */
+    protected static class MemberRandom implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+
+        private long _seed;
+        /** Odd increment of _seed */
+        private final long _gamma;
+        private double _nextGaussian;
+        private boolean _haveNextGaussian;
+
+        public MemberRandom(long seed) {
+            this(seed, GOLDEN_GAMMA);
+        }
+
+        private MemberRandom(long seed, long gamma) {
+            _seed = seed;
+            _gamma = gamma;
+        }
+
+        /** A new independent stream; successive calls give different, reproducible streams. */
+        public MemberRandom split() {
+            return new MemberRandom(mix64(nextSeed()), mixGamma(nextSeed()));
+        }
+
+        public long nextLong() {
+            return mix64(nextSeed());
+        }
+
+        public boolean nextBoolean() {
+            return nextLong() < 0;
+        }
+
+        /** Uniform in [0, 1). */
+        public double nextDouble() {
+            return (nextLong() >>> 11) * 0x1.0p-53;
+        }
+
+        /** Standard normal, by the polar method as in java.util.Random. */
+        public double nextGaussian() {
+            if (_haveNextGaussian) {
+                _haveNextGaussian = false;
+                return _nextGaussian;
+            }
+            double v1, v2, s;
+            do {
+                v1 = 2 * nextDouble() - 1;
+                v2 = 2 * nextDouble() - 1;
+                s = v1 * v1 + v2 * v2;
+            } while (s >= 1 || s == 0);
+            double multiplier = StrictMath.sqrt(-2 * StrictMath.log(s) / s);
+            _nextGaussian = v2 * multiplier;
+            _haveNextGaussian = true;
+            return v1 * multiplier;
+        }
+
+        private long nextSeed() {
+            return _seed += _gamma;
+        }
+
+        /** Odd gamma with enough bit transitions, as SplittableRandom.mixGamma. */
+        private static long mixGamma(long z) {
+            z = (z ^ (z >>> 33)) * 0xff51afd7ed558ccdL;
+            z = (z ^ (z >>> 33)) * 0xc4ceb9fe1a85ec53L;
+            z = (z ^ (z >>> 33)) | 1L;
+            int n = Long.bitCount(z ^ (z >>> 1));
+            return n < 24 ? z ^ 0xaaaaaaaaaaaaaaaaL : z;
+        }
+
+        private static long mix64(long z) {
+            z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+            z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+            return z ^ (z >>> 31);
+        }
+    }
+
+    public void setCoreSize(int coreSize) {
+        _amountOfCores.setValue(coreSize);
+    }
+
+    public long getTrainCpuTime() {
+        return _trainCpuTime.sum();
+    }
 
-    public AtomicInteger getCpuTime() {
-        return _cpuTime;
+    public long getPredictCpuTime() {
+        return _predictCpuTime.sum();
     }
 
 }
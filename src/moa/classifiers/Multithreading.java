@@ -1,17 +1,30 @@
 package moa.classifiers;
 
-import java.util.HashSet;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ForkJoinPool;
-import java.util.concurrent.atomic.AtomicInteger;
 
 public interface Multithreading {
 
      void trainingHasEnded();
 
-     AtomicInteger getCpuTime();
+     /** CPU time in nanoseconds spent training, summed over the calling thread and every worker thread. */
+     long getTrainCpuTime();
+
+     /** CPU time in nanoseconds spent predicting, summed over the calling thread and every worker thread. */
+     long getPredictCpuTime();
+
+     /** Size of the model in bytes, kept up to date incrementally rather than walking the whole model every time. */
+     long estimatedByteSize();
+
+     /** Sheds memory while the model is over its memory budget; returns its size in bytes, or -1 without a budget. */
+     long enforceMemoryBudget();
 
      void init() throws InterruptedException, ExecutionException;
 
+     /**
+      * Sets the number of cores to run on, as the coreSize option does; takes effect at the next resetLearning().
+      * A core size of 1 runs on the calling thread alone, whatever other options of the learner ask for.
+      */
+     void setCoreSize(int coreSize);
+
 
 }
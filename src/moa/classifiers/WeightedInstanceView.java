@@ -0,0 +1,308 @@
+/*
+ *    WeightedInstanceView.java
+ *
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package moa.classifiers;
+
+import com.yahoo.labs.samoa.instances.Attribute;
+import com.yahoo.labs.samoa.instances.Instance;
+import com.yahoo.labs.samoa.instances.Instances;
+
+/**
+ * Read-only view of a shared instance with its own weight and, optionally, its own class value.
+ * Ensembles keep one view per member and re-point it for every instance, so training a member
+ * does not copy the attribute values. copy() gives a real instance with the view's weight and class.
+ * A view is only valid until it is re-pointed, so learners that keep instances must copy them.
+ */
+public class WeightedInstanceView implements Instance {
+
+    private static final long serialVersionUID = 1L;
+
+    private Instance _instance;
+    private double _weight;
+    private double _classValue;
+    private boolean _relabelled;
+    /**
+     * Position of the class value among the stored values of a relabelled instance, looked up on the first
+     * sparse access, or -1 before. A sparse instance may not store a class value of 0, in which case the view
+     * inserts its class value at that position.
+     */
+    private int _classPosition = -1;
+    private boolean _classInserted;
+
+    /** Points the view at inst with the given weight, keeping its class value. */
+    public WeightedInstanceView set(Instance inst, double weight) {
+        _instance = inst;
+        _weight = weight;
+        _relabelled = false;
+        _classPosition = -1;
+        return this;
+    }
+
+    /** Points the view at inst with the given weight and class value. */
+    public WeightedInstanceView set(Instance inst, double weight, double classValue) {
+        _instance = inst;
+        _weight = weight;
+        _classValue = classValue;
+        _relabelled = true;
+        _classPosition = -1;
+        return this;
+    }
+
+    @Override
+    public double weight() {
+        return _weight;
+    }
+
+    @Override
+    public double classValue() {
+        return _relabelled ? _classValue : _instance.classValue();
+    }
+
+    @Override
+    public double classValue(int instAttIndex) {
+        return _relabelled && instAttIndex == 0 ? _classValue : _instance.classValue(instAttIndex);
+    }
+
+    @Override
+    public boolean classIsMissing() {
+        return !_relabelled && _instance.classIsMissing();
+    }
+
+    @Override
+    public double value(int attIndex) {
+        return _relabelled && attIndex == _instance.classIndex() ? _classValue : _instance.value(attIndex);
+    }
+
+    @Override
+    public double value(Attribute attribute) {
+        return _relabelled && attribute == _instance.classAttribute() ? _classValue : _instance.value(attribute);
+    }
+
+    @Override
+    public boolean isMissing(int attIndex) {
+        return !(_relabelled && attIndex == _instance.classIndex()) && _instance.isMissing(attIndex);
+    }
+
+    @Override
+    public boolean isMissing(Attribute attribute) {
+        return !(_relabelled && attribute == _instance.classAttribute()) && _instance.isMissing(attribute);
+    }
+
+    @Override
+    public double[] toDoubleArray() {
+        double[] values = _instance.toDoubleArray();
+        if (_relabelled) values[_instance.classIndex()] = _classValue;
+        return values;
+    }
+
+    @Override
+    public double valueOutputAttribute(int attributeIndex) {
+        return _relabelled && attributeIndex == 0 ? _classValue : _instance.valueOutputAttribute(attributeIndex);
+    }
+
+    @Override
+    public Instance copy() {
+        Instance copy = _instance.copy();
+        copy.setWeight(_weight);
+        if (_relabelled) copy.setClassValue(_classValue);
+        return copy;
+    }
+
+    @Override
+    public Attribute attribute(int index) {
+        return _instance.attribute(index);
+    }
+
+    @Override
+    public int indexOfAttribute(Attribute attribute) {
+        return _instance.indexOfAttribute(attribute);
+    }
+
+    @Override
+    public int numAttributes() {
+        return _instance.numAttributes();
+    }
+
+    @Override
+    public int numValues() {
+        if (_relabelled) {
+            classPosition();
+            if (_classInserted) return _instance.numValues() + 1;
+        }
+        return _instance.numValues();
+    }
+
+    @Override
+    public String stringValue(int attIndex) {
+        return _instance.stringValue(attIndex);
+    }
+
+    @Override
+    public int index(int position) {
+        if (!_relabelled) return _instance.index(position);
+        int classPosition = classPosition();
+        if (position == classPosition) return _instance.classIndex();
+        return _instance.index(_classInserted && position > classPosition ? position - 1 : position);
+    }
+
+    @Override
+    public double valueSparse(int position) {
+        if (!_relabelled) return _instance.valueSparse(position);
+        int classPosition = classPosition();
+        if (position == classPosition) return _classValue;
+        return _instance.valueSparse(_classInserted && position > classPosition ? position - 1 : position);
+    }
+
+    @Override
+    public boolean isMissingSparse(int position) {
+        if (!_relabelled) return _instance.isMissingSparse(position);
+        int classPosition = classPosition();
+        if (position == classPosition) return false;
+        return _instance.isMissingSparse(_classInserted && position > classPosition ? position - 1 : position);
+    }
+
+    /** Position of the class value among the values of the view, found by binary search over the stored indices. */
+    private int classPosition() {
+        if (_classPosition < 0) {
+            int classIndex = _instance.classIndex();
+            int low = 0;
+            int high = _instance.numValues() - 1;
+            _classInserted = true;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                int index = _instance.index(middle);
+                if (index < classIndex) {
+                    low = middle + 1;
+                } else if (index > classIndex) {
+                    high = middle - 1;
+                } else {
+                    low = middle;
+                    _classInserted = false;
+                    break;
+                }
+            }
+            _classPosition = low;
+        }
+        return _classPosition;
+    }
+
+    @Override
+    public Attribute classAttribute() {
+        return _instance.classAttribute();
+    }
+
+    @Override
+    public int classIndex() {
+        return _instance.classIndex();
+    }
+
+    @Override
+    public int numClasses() {
+        return _instance.numClasses();
+    }
+
+    @Override
+    public Instances dataset() {
+        return _instance.dataset();
+    }
+
+    @Override
+    public int numInputAttributes() {
+        return _instance.numInputAttributes();
+    }
+
+    @Override
+    public int numOutputAttributes() {
+        return _instance.numOutputAttributes();
+    }
+
+    @Override
+    public int numberOutputTargets() {
+        return _instance.numberOutputTargets();
+    }
+
+    @Override
+    public Attribute outputAttribute(int outputIndex) {
+        return _instance.outputAttribute(outputIndex);
+    }
+
+    @Override
+    public Attribute inputAttribute(int attributeIndex) {
+        return _instance.inputAttribute(attributeIndex);
+    }
+
+    @Override
+    public double valueInputAttribute(int attributeIndex) {
+        return _instance.valueInputAttribute(attributeIndex);
+    }
+
+    @Override
+    public void setWeight(double weight) {
+        throw new UnsupportedOperationException("WeightedInstanceView is read-only");
+    }
+
+    @Override
+    public void deleteAttributeAt(int position) {
+        throw new UnsupportedOperationException("WeightedInstanceView is read-only");
+    }
+
+    @Override
+    public void insertAttributeAt(int position) {
+        throw new UnsupportedOperationException("WeightedInstanceView is read-only");
+    }
+
+    @Override
+    public void addSparseValues(int[] indexValues, double[] attributeValues, int numberAttributes) {
+        throw new UnsupportedOperationException("WeightedInstanceView is read-only");
+    }
+
+    @Override
+    public void setMissing(int instAttIndex) {
+        throw new UnsupportedOperationException("WeightedInstanceView is read-only");
+    }
+
+    @Override
+    public void setMissing(Attribute attribute) {
+        throw new UnsupportedOperationException("WeightedInstanceView is read-only");
+    }
+
+    @Override
+    public void setValue(int instAttIndex, double value) {
+        throw new UnsupportedOperationException("WeightedInstanceView is read-only");
+    }
+
+    @Override
+    public void setValue(Attribute attribute, double value) {
+        throw new UnsupportedOperationException("WeightedInstanceView is read-only");
+    }
+
+    @Override
+    public void setClassValue(double d) {
+        throw new UnsupportedOperationException("WeightedInstanceView is read-only");
+    }
+
+    @Override
+    public void setClassValue(int indexClass, double valueAttribute) {
+        throw new UnsupportedOperationException("WeightedInstanceView is read-only");
+    }
+
+    @Override
+    public void setDataset(Instances dataset) {
+        throw new UnsupportedOperationException("WeightedInstanceView is read-only");
+    }
+}
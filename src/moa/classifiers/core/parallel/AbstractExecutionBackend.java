@@ -0,0 +1,127 @@
+/*
+ *    AbstractExecutionBackend.java
+ *
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package moa.classifiers.core.parallel;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntConsumer;
+
+import moa.core.Measurement;
+import moa.core.ObjectRepository;
+import moa.options.AbstractOptionHandler;
+import moa.tasks.TaskMonitor;
+
+/**
+ * Base class of the execution backends. Backends hold their threads in transient fields, so a learner can
+ * still be copied; a copy starts its own threads.
+ */
+public abstract class AbstractExecutionBackend extends AbstractOptionHandler implements ExecutionBackend {
+
+    private static final long serialVersionUID = 1L;
+
+    protected int _parallelism = 1;
+
+    @Override
+    public int parallelism() {
+        return _parallelism;
+    }
+
+    @Override
+    public Measurement[] getMeasurements() {
+        return new Measurement[0];
+    }
+
+    /** Threads, active threads, queued tasks and steals of a ForkJoinPool. */
+    protected static Measurement[] forkJoinMeasurements(ForkJoinPool pool) {
+        return new Measurement[]{
+                new Measurement("pool threads", pool.getPoolSize()),
+                new Measurement("pool active threads", pool.getActiveThreadCount()),
+                new Measurement("pool queued tasks", pool.getQueuedTaskCount() + pool.getQueuedSubmissionCount()),
+                new Measurement("pool steals", pool.getStealCount())};
+    }
+
+    /** Number of threads for coreSize: itself when above 1, otherwise one per processor. */
+    protected static int threadsFor(int coreSize) {
+        return coreSize > 1 ? coreSize : Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * Runs task(0..count-1) as at most tasks jobs on executor, every job claiming the next index until none are
+     * left, so there is one submission per job rather than per index. Returns once every job is done.
+     */
+    protected static void invokeClaiming(ExecutorService executor, int tasks, int count, IntConsumer task) {
+        AtomicInteger next = new AtomicInteger();
+        int jobs = Math.min(tasks, count);
+        Future<?>[] futures = new Future<?>[jobs];
+        for (int t = 0; t < jobs; t++) {
+            futures[t] = executor.submit(() -> {
+                for (int j = next.getAndIncrement(); j < count; j = next.getAndIncrement()) task.accept(j);
+            });
+        }
+        await(futures);
+    }
+
+    /** Waits for every future, then rethrows the first failure among them. */
+    protected static void await(Future<?>[] futures) {
+        Throwable failure = null;
+        for (Future<?> future : futures) {
+            try {
+                join(future);
+            } catch (RuntimeException | Error e) {
+                if (failure == null) failure = e;
+                if (Thread.currentThread().isInterrupted()) break;
+            }
+        }
+        if (failure instanceof Error) throw (Error) failure;
+        if (failure != null) throw (RuntimeException) failure;
+    }
+
+    /**
+     * Waits for future and rethrows the failure of its task unwrapped, so a member failing on the backend
+     * surfaces as it would when trained on the calling thread. An interrupt is kept on the thread and thrown.
+     */
+    protected static void join(Future<?> future) {
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for member tasks", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            // a ForkJoinTask rethrows a copy of the exception of another thread, with the original as its cause
+            if (future instanceof ForkJoinTask && cause.getCause() != null
+                    && cause.getCause().getClass() == cause.getClass()) cause = cause.getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new RuntimeException(cause);
+        }
+    }
+
+    @Override
+    protected void prepareForUseImpl(TaskMonitor monitor, ObjectRepository repository) {
+    }
+
+    @Override
+    public void getDescription(StringBuilder sb, int indent) {
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ *    CommonPoolBackend.java
+ *
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package moa.classifiers.core.parallel;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+
+import moa.core.Measurement;
+
+/**
+ * The JVM-wide common ForkJoinPool, shared with every other learner and parallel stream, whatever the coreSize.
+ * Starts no threads of its own; the calling thread helps with the members.
+ */
+public class CommonPoolBackend extends AbstractExecutionBackend {
+
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    public String getPurposeString() {
+        return "The shared common ForkJoinPool of the JVM.";
+    }
+
+    @Override
+    public void start(int coreSize) {
+        _parallelism = ForkJoinPool.getCommonPoolParallelism() + 1;
+    }
+
+    @Override
+    public void invokeAll(int count, IntConsumer task) {
+        IntStream.range(0, count).parallel().forEach(task);
+    }
+
+    @Override
+    public Measurement[] getMeasurements() {
+        return forkJoinMeasurements(ForkJoinPool.commonPool());
+    }
+
+    @Override
+    public void shutdown() {
+    }
+}
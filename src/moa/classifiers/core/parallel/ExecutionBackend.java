@@ -0,0 +1,52 @@
+/*
+ *    ExecutionBackend.java
+ *
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package moa.classifiers.core.parallel;
+
+import java.util.function.IntConsumer;
+
+import moa.core.Measurement;
+import moa.options.OptionHandler;
+
+/**
+ * Threads a parallel ensemble runs its member tasks on, chosen with the executionBackend option of
+ * AbstractClassifierParallel. A backend is started once per learner and used by one calling thread at a time.
+ */
+public interface ExecutionBackend extends OptionHandler {
+
+    /**
+     * Starts the threads for a learner with the given coreSize: the number of threads when it is above 1, or
+     * the backend's default for the machine when it is 0.
+     */
+    void start(int coreSize);
+
+    /** Number of member tasks the backend runs at once after start(). */
+    int parallelism();
+
+    /**
+     * Runs task(0..count-1) on the backend's threads and returns once all of them are done. A task that throws
+     * fails the call with its exception, as it would on the calling thread.
+     */
+    void invokeAll(int count, IntConsumer task);
+
+    /** Utilization of the backend's threads, added to the measurements of the learner using it. */
+    Measurement[] getMeasurements();
+
+    /** Stops the threads; tasks already running are finished first. */
+    void shutdown();
+}
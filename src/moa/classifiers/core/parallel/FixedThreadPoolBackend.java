@@ -0,0 +1,71 @@
+/*
+ *    FixedThreadPoolBackend.java
+ *
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package moa.classifiers.core.parallel;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.function.IntConsumer;
+
+import moa.core.Measurement;
+
+/**
+ * A fixed pool of platform threads, coreSize of them or one per processor for coreSize 0. Every thread claims
+ * members in index order until none are left; there is no work stealing.
+ */
+public class FixedThreadPoolBackend extends AbstractExecutionBackend {
+
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    public String getPurposeString() {
+        return "Fixed pool of platform threads claiming members in turn.";
+    }
+
+    /** Not serialised; started by start() */
+    protected transient ThreadPoolExecutor _executor;
+
+    @Override
+    public void start(int coreSize) {
+        _parallelism = threadsFor(coreSize);
+        _executor = (ThreadPoolExecutor) Executors.newFixedThreadPool(_parallelism, runnable -> {
+            Thread thread = new Thread(runnable, "FixedThreadPoolBackend");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    public void invokeAll(int count, IntConsumer task) {
+        invokeClaiming(_executor, _parallelism, count, task);
+    }
+
+    /** Threads, active threads and queued tasks; a fixed pool does not steal. */
+    @Override
+    public Measurement[] getMeasurements() {
+        return new Measurement[]{
+                new Measurement("pool threads", _executor.getPoolSize()),
+                new Measurement("pool active threads", _executor.getActiveCount()),
+                new Measurement("pool queued tasks", _executor.getQueue().size())};
+    }
+
+    @Override
+    public void shutdown() {
+        if (_executor != null) _executor.shutdown();
+    }
+}
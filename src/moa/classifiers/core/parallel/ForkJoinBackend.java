@@ -0,0 +1,72 @@
+/*
+ *    ForkJoinBackend.java
+ *
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package moa.classifiers.core.parallel;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+
+import moa.core.Measurement;
+
+/**
+ * A ForkJoinPool of the learner's own with coreSize threads, splitting the members by work stealing.
+ * With coreSize 0 it runs on the common pool instead, helped by the calling thread.
+ */
+public class ForkJoinBackend extends AbstractExecutionBackend {
+
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    public String getPurposeString() {
+        return "Dedicated ForkJoinPool with coreSize threads, or the common pool for coreSize 0.";
+    }
+
+    /** Not serialised; null while the common pool is used */
+    protected transient ForkJoinPool _pool;
+
+    @Override
+    public void start(int coreSize) {
+        if (coreSize > 1) {
+            _pool = new ForkJoinPool(coreSize);
+            _parallelism = coreSize;
+        } else {
+            _pool = null;
+            _parallelism = ForkJoinPool.getCommonPoolParallelism() + 1;
+        }
+    }
+
+    @Override
+    public void invokeAll(int count, IntConsumer task) {
+        if (_pool == null) {
+            IntStream.range(0, count).parallel().forEach(task);
+            return;
+        }
+        join(_pool.submit(() -> IntStream.range(0, count).parallel().forEach(task)));
+    }
+
+    @Override
+    public Measurement[] getMeasurements() {
+        return forkJoinMeasurements(_pool != null ? _pool : ForkJoinPool.commonPool());
+    }
+
+    @Override
+    public void shutdown() {
+        if (_pool != null) _pool.shutdown();
+    }
+}
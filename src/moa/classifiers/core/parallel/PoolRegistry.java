@@ -0,0 +1,200 @@
+/*
+ *    PoolRegistry.java
+ *
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package moa.classifiers.core.parallel;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.LongAdder;
+
+import moa.core.Measurement;
+
+/**
+ * Process-wide registry of named ForkJoinPools that learners acquire and release, so that many learners and
+ * evaluation tasks in one JVM share threads instead of starting a pool each. A pool is created by the first
+ * acquire of its name and shut down when its last user releases it.
+ *
+ * <p>The worker threads of all registered pools together are capped at the number of processors. A new pool
+ * gets the threads it asks for as far as the cap allows; once every processor is taken, a new name is handed
+ * the least used existing pool instead.</p>
+ *
+ * <p>Threads a learner starts itself instead of taking them from a pool, such as the member-pinned workers and
+ * the background trainer of OzaBagMC, are claimed with acquireThreads and count against the same cap, so pools
+ * created after them get fewer threads. Only the SharedPoolBackend takes its threads from the registry; the
+ * other execution backends start their own threads, which the cap does not count.</p>
+ */
+public final class PoolRegistry {
+
+    private static final Map<String, Entry> POOLS = new LinkedHashMap<>();
+
+    /** Worker threads of all registered pools and dedicated threads together */
+    private static int _threads;
+
+    /** Threads claimed with acquireThreads, started by learners outside the pools */
+    private static int _dedicatedThreads;
+
+    private PoolRegistry() {
+    }
+
+    /** A registered pool and the accounting behind its utilization. */
+    public static final class Entry {
+        private final String _name;
+        private final ForkJoinPool _pool;
+        private final long _created = System.nanoTime();
+        /** Nanoseconds its workers spent running member tasks, added by the users of the pool */
+        private final LongAdder _busyNanos = new LongAdder();
+        private int _references;
+
+        private Entry(String name, int parallelism) {
+            _name = name;
+            _pool = new ForkJoinPool(parallelism);
+        }
+
+        public String getName() {
+            return _name;
+        }
+
+        public ForkJoinPool getPool() {
+            return _pool;
+        }
+
+        /** Adds time the pool's workers spent running tasks, for getUtilization(). */
+        public void addBusyTime(long nanos) {
+            _busyNanos.add(nanos);
+        }
+
+        /** Share of the pool's thread time since it was created that was spent running tasks, from 0 to 1. */
+        public double getUtilization() {
+            double available = (double) (System.nanoTime() - _created) * _pool.getParallelism();
+            return available > 0.0 ? _busyNanos.sum() / available : 0.0;
+        }
+    }
+
+    /** Most worker threads all registered pools may have together. */
+    public static int getThreadCap() {
+        return Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * The pool registered under name, created with up to parallelism threads if there is none. Every call must be
+     * matched by one release(name).
+     */
+    public static synchronized Entry acquire(String name, int parallelism) {
+        Entry entry = POOLS.get(name);
+        if (entry == null) {
+            int threads = Math.min(parallelism, getThreadCap() - _threads);
+            if (threads >= 1 || POOLS.isEmpty()) {
+                // with the cap taken by dedicated threads and no pool to share, the pool still gets one thread
+                threads = Math.max(1, threads);
+                entry = new Entry(name, threads);
+                _threads += threads;
+            } else {
+                entry = leastUsed();
+            }
+            POOLS.put(name, entry);
+        }
+        entry._references++;
+        return entry;
+    }
+
+    /**
+     * Claims up to wanted threads that the caller starts itself, counting them against the cap. At least one is
+     * granted, so the caller can always run, even if that goes over the cap. Every claim must be matched by
+     * releaseThreads with the number granted.
+     *
+     * @return the number of threads the caller may start
+     */
+    public static synchronized int acquireThreads(int wanted) {
+        int granted = Math.max(1, Math.min(wanted, getThreadCap() - _threads));
+        _threads += granted;
+        _dedicatedThreads += granted;
+        return granted;
+    }
+
+    /** Gives back threads claimed with acquireThreads once they have stopped. */
+    public static synchronized void releaseThreads(int threads) {
+        _threads -= threads;
+        _dedicatedThreads -= threads;
+    }
+
+    /** Gives back a pool acquired under name; the last release shuts it down. */
+    public static synchronized void release(String name) {
+        Entry entry = POOLS.get(name);
+        if (entry == null) return;
+        if (--entry._references > 0) return;
+        // the pool may be registered under several names
+        for (Iterator<Entry> it = POOLS.values().iterator(); it.hasNext(); ) {
+            if (it.next() == entry) it.remove();
+        }
+        _threads -= entry._pool.getParallelism();
+        entry._pool.shutdown();
+    }
+
+    private static Entry leastUsed() {
+        Entry least = null;
+        for (Entry entry : POOLS.values()) {
+            if (least == null || entry._references < least._references) least = entry;
+        }
+        return least;
+    }
+
+    /** Utilization of the pool registered under name and of the registry as a whole. */
+    public static synchronized Measurement[] getMeasurements(String name) {
+        Entry entry = POOLS.get(name);
+        List<Measurement> measurements = new ArrayList<>();
+        if (entry != null) {
+            measurements.addAll(Arrays.asList(AbstractExecutionBackend.forkJoinMeasurements(entry._pool)));
+            measurements.add(new Measurement("pool users", entry._references));
+            measurements.add(new Measurement("pool utilization (percent)", 100.0 * entry.getUtilization()));
+        }
+        measurements.add(new Measurement("registered pools", distinctPools()));
+        measurements.add(new Measurement("registered threads", _threads));
+        measurements.add(new Measurement("registered dedicated threads", _dedicatedThreads));
+        measurements.add(new Measurement("registered thread cap", getThreadCap()));
+        return measurements.toArray(new Measurement[measurements.size()]);
+    }
+
+    /** One line per registered name with its pool's threads, users and utilization. */
+    public static synchronized String describe() {
+        StringBuilder out = new StringBuilder();
+        for (Map.Entry<String, Entry> named : POOLS.entrySet()) {
+            Entry entry = named.getValue();
+            out.append(named.getKey());
+            if (!entry._name.equals(named.getKey())) out.append(" -> ").append(entry._name);
+            out.append(": ").append(entry._pool.getParallelism()).append(" threads, ")
+                    .append(entry._references).append(" users, ")
+                    .append(String.format("%.1f", 100.0 * entry.getUtilization())).append("% utilized\n");
+        }
+        out.append(_threads).append(" of ").append(getThreadCap()).append(" threads registered, ")
+                .append(_dedicatedThreads).append(" of them dedicated\n");
+        return out.toString();
+    }
+
+    private static int distinctPools() {
+        int count = 0;
+        for (Map.Entry<String, Entry> named : POOLS.entrySet()) {
+            if (named.getValue()._name.equals(named.getKey())) count++;
+        }
+        return count;
+    }
+}
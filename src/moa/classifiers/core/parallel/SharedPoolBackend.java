@@ -0,0 +1,76 @@
+/*
+ *    SharedPoolBackend.java
+ *
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package moa.classifiers.core.parallel;
+
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+
+import com.github.javacliparser.StringOption;
+
+import moa.core.Measurement;
+
+/**
+ * A named ForkJoinPool from the PoolRegistry, shared by every learner that names the same pool and released
+ * again when the learner's training has ended. Asks for coreSize threads, or one per processor for coreSize 0,
+ * within the registry's cap on threads over all pools.
+ */
+public class SharedPoolBackend extends AbstractExecutionBackend {
+
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    public String getPurposeString() {
+        return "Named ForkJoinPool shared through the process-wide pool registry.";
+    }
+
+    public StringOption poolNameOption = new StringOption("poolName", 'n',
+            "Name of the shared pool; learners naming the same pool share its threads.", "shared");
+
+    /** Not serialised; acquired by start() */
+    protected transient PoolRegistry.Entry _entry;
+
+    @Override
+    public void start(int coreSize) {
+        _entry = PoolRegistry.acquire(this.poolNameOption.getValue(), threadsFor(coreSize));
+        _parallelism = _entry.getPool().getParallelism();
+    }
+
+    @Override
+    public void invokeAll(int count, IntConsumer task) {
+        PoolRegistry.Entry entry = _entry;
+        IntConsumer timedTask = j -> {
+            long start = System.nanoTime();
+            task.accept(j);
+            entry.addBusyTime(System.nanoTime() - start);
+        };
+        join(entry.getPool().submit(() -> IntStream.range(0, count).parallel().forEach(timedTask)));
+    }
+
+    @Override
+    public Measurement[] getMeasurements() {
+        return PoolRegistry.getMeasurements(this.poolNameOption.getValue());
+    }
+
+    @Override
+    public void shutdown() {
+        if (_entry == null) return;
+        _entry = null;
+        PoolRegistry.release(this.poolNameOption.getValue());
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ *    VirtualThreadBackend.java
+ *
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package moa.classifiers.core.parallel;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.IntConsumer;
+
+/**
+ * A new virtual thread for every member task, on the virtual thread scheduler of the JVM. How many run at once
+ * is bounded by the scheduler's carrier threads (jdk.virtualThreadScheduler.parallelism), not by coreSize; the
+ * reported parallelism of coreSize, or one per processor, only sizes the adaptive core count levels.
+ * Needs Java 21 at run time; the executor is looked up reflectively as the code is built for Java 8.
+ */
+public class VirtualThreadBackend extends AbstractExecutionBackend {
+
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    public String getPurposeString() {
+        return "One virtual thread per member task (Java 21 or later).";
+    }
+
+    /** Not serialised; started by start() */
+    protected transient ExecutorService _executor;
+
+    @Override
+    public void start(int coreSize) {
+        _parallelism = threadsFor(coreSize);
+        try {
+            _executor = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            throw new UnsupportedOperationException("Virtual threads need Java 21 or later, running on "
+                    + System.getProperty("java.version"), e);
+        }
+    }
+
+    @Override
+    public void invokeAll(int count, IntConsumer task) {
+        Future<?>[] futures = new Future<?>[count];
+        for (int j = 0; j < count; j++) {
+            int index = j;
+            futures[j] = _executor.submit(() -> task.accept(index));
+        }
+        await(futures);
+    }
+
+    @Override
+    public void shutdown() {
+        if (_executor != null) _executor.shutdown();
+    }
+}
@@ -11,22 +11,19 @@ import moa.capabilities.CapabilitiesHandler;
 import moa.capabilities.Capability;
 import moa.capabilities.ImmutableCapabilities;
 import moa.classifiers.AbstractClassifierParallel;
+import moa.classifiers.Classifier;
 import moa.classifiers.MultiClassClassifier;
 import moa.classifiers.Multithreading;
 import moa.classifiers.core.driftdetection.ChangeDetector;
 import moa.classifiers.trees.ARFHoeffdingTree;
-import moa.core.DoubleVector;
 import moa.core.InstanceExample;
 import moa.core.Measurement;
-import moa.core.MiscUtils;
 import moa.evaluation.BasicClassificationPerformanceEvaluator;
 import moa.options.ClassOption;
 
 import java.util.ArrayList;
-import java.util.Collection;
-import java.util.concurrent.*;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.stream.IntStream;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
 
 
 /**
@@ -126,9 +123,11 @@ public class AdaptiveRandomForestMC extends AbstractClassifierParallel implement
     protected int subspaceSize;
     protected BasicClassificationPerformanceEvaluator evaluator;
 
+    /** Poisson weight of every tree for the current instance, and the trees whose weight is not 0 */
     protected int[] _k;
-
-    private ExecutorService executor;
+    protected int[] _active;
+    /** Wall time in nanoseconds spent training every tree position, across drift resets; one writer per tree */
+    protected long[] _trainingNanos;
 
     @Override
     public void resetLearningImpl() {
@@ -137,118 +136,96 @@ public class AdaptiveRandomForestMC extends AbstractClassifierParallel implement
         this.subspaceSize = 0;
         this.instancesSeen = 0;
         this.evaluator = new BasicClassificationPerformanceEvaluator();
-        _k = new int[ensembleSizeOption.getValue()];
+        initMemberRandom(this.ensembleSizeOption.getValue(), this.randomSeed);
+    }
 
-        // Multi-threading
-        int numberOfJobs;
-        if (this.numberOfJobsOption.getValue() == -1)
-            numberOfJobs = Runtime.getRuntime().availableProcessors();
-        else
-            numberOfJobs = this.numberOfJobsOption.getValue();
+    /**
+     * numberOfJobs is kept from AdaptiveRandomForest: when coreSize is 1, more than one job runs the trees
+     * on that many cores of the execution backend, and -1 on one per processor.
+     */
+    @Override
+    protected int coreSize() {
+        int coreSize = super.coreSize();
+        int numberOfJobs = this.numberOfJobsOption.getValue();
         // SINGLE_THREAD and requesting for only 1 thread are equivalent.
-        // this.executor will be null and not used...
-        if (numberOfJobs != AdaptiveRandomForestMC.SINGLE_THREAD && numberOfJobs != 1)
-            this.executor = Executors.newFixedThreadPool(numberOfJobs);
+        if (coreSize != 1 || numberOfJobs == AdaptiveRandomForestMC.SINGLE_THREAD || numberOfJobs == 1)
+            return coreSize;
+        return numberOfJobs == -1 ? Runtime.getRuntime().availableProcessors() : numberOfJobs;
     }
 
-    public void train(int i, Instance instance, int k) {
+    /** A core size of 1 also sets numberOfJobs to 1, so the trees are trained on the calling thread alone. */
+    @Override
+    public void setCoreSize(int coreSize) {
+        super.setCoreSize(coreSize);
+        if (coreSize == 1) this.numberOfJobsOption.setValue(1);
+    }
 
-        this.ensemble[i].trainOnInstance(instance, k, this.instancesSeen);
-        double t2 = System.currentTimeMillis();
-        _cpuTime.addAndGet((int) (t2 - _t1));
+    /**
+     * Feeds the tree's evaluator with its vote, then trains it with a weight drawn from its own stream.
+     * The vote from the last prediction on instance is reused for the evaluator.
+     */
+    @Override
+    protected void trainMember(int i, Instance instance) {
+        trainMember(i, instance, poisson(this.lambdaOption.getValue(), _memberRandom[i]), this.instancesSeen);
+    }
 
+    /** On a pinned worker, instancesSeen is the count the instance was dispatched with. */
+    @Override
+    protected void trainDispatchedMember(int i, Instance instance, long instancesSeen) {
+        trainMember(i, instance, poisson(this.lambdaOption.getValue(), _memberRandom[i]), instancesSeen);
+    }
 
+    /** As trainMember(i, instance), with the weight k already drawn and instancesSeen counting instance. */
+    protected void trainMember(int i, Instance instance, int k, long instancesSeen) {
+        long start = System.nanoTime();
+        double[] vote = takeVotes(i, instance);
+        if (vote == null) vote = this.ensemble[i].getVotesForInstance(instance);
+        InstanceExample example = new InstanceExample(instance);
+        this.ensemble[i].evaluator.addResult(example, vote);
+        if (k > 0) {
+            this.ensemble[i].trainOnInstance(instance, k, instancesSeen);
+        }
+        _trainingNanos[i] += System.nanoTime() - start;
     }
 
     @Override
     public void trainOnInstanceImpl(Instance instance) {
-        double t1 = System.currentTimeMillis();
-        _t1 = t1;
         ++this.instancesSeen;
-        if (this.ensemble == null){
+        if (this.ensemble == null)
             initEnsemble(instance);
-            _k = new int[ensembleSizeOption.getValue()];
-
-        }
-
-        if (_numOfCores != 1) {
-                for (int i = 0; i < this.ensemble.length; i++) {
-                        DoubleVector vote = new DoubleVector(this.ensemble[i].getVotesForInstance(instance));
-                        InstanceExample example = new InstanceExample(instance);
-                        this.ensemble[i].evaluator.addResult(example, vote.getArrayRef());
-                        int k = MiscUtils.poisson(this.lambdaOption.getValue(), this.classifierRandom);
-                        _k[i] = k;
-                }
-                if(_numOfCores == 0)
-                IntStream.range(0, ensemble.length).parallel().forEach(i -> train(i,instance,_k[i]));
-                else {
-                    try {
-                        _threadpool.submit(() -> IntStream.range(0, ensemble.length).parallel().forEach(i -> train(i,instance,_k[i]))).get();
-                    } catch (InterruptedException e) {
-                        e.printStackTrace();
-                    } catch (ExecutionException e) {
-                        e.printStackTrace();
-                    }
-                }
-
-
 
+        if (usePinnedWorkers()) {
+            dispatchToWorkers(instance, this.ensemble.length, this.instancesSeen);
 
         } else {
-            Collection<TrainingRunnable> trainers = new ArrayList<TrainingRunnable>();
+            // a tree drawing weight 0 only updates its evaluator, which is done here instead of dispatching it
+            int count = 0;
             for (int i = 0; i < this.ensemble.length; i++) {
-                DoubleVector vote = new DoubleVector(this.ensemble[i].getVotesForInstance(instance));
-                InstanceExample example = new InstanceExample(instance);
-                this.ensemble[i].evaluator.addResult(example, vote.getArrayRef());
-                int k = MiscUtils.poisson(this.lambdaOption.getValue(), this.classifierRandom);
-                if (k > 0) {
-                    if (this.executor != null) {
-
-                        // Parallel Here, Ensemble(i), k (Possion Var), (Instances seen?)
-
-                        TrainingRunnable trainer = new TrainingRunnable(this.ensemble[i],
-                                instance, k, this.instancesSeen);
-                        trainers.add(trainer);
-                    } else { // SINGLE_THREAD is in-place...
-                        this.ensemble[i].trainOnInstance(instance, k, this.instancesSeen);
-                    }
-                }
-            }
-            double t2 = System.currentTimeMillis();
-            _cpuTime.addAndGet((int) (t2 - _t1));
-            if (this.executor != null) {
-                try {
-                    this.executor.invokeAll(trainers);
-                } catch (InterruptedException ex) {
-                    throw new RuntimeException("Could not call invokeAll() on training threads.");
-                }
+                _k[i] = poisson(this.lambdaOption.getValue(), _memberRandom[i]);
+                if (_k[i] > 0) _active[count++] = i;
+                else trainMember(i, instance, 0, this.instancesSeen);
             }
+            long instancesSeen = this.instancesSeen;
+            forEachMember(_active, count, i -> trainMember(i, instance, _k[i], instancesSeen));
         }
-
-
     }
 
     @Override
-    public double[] getVotesForInstance(Instance instance) {
-        Instance testInstance = instance.copy();
+    public double[] getVotesForInstanceImpl(Instance instance) {
+        awaitWorkers();
         if (this.ensemble == null)
-            initEnsemble(testInstance);
-        DoubleVector combinedVote = new DoubleVector();
-
-        for (int i = 0; i < this.ensemble.length; ++i) {
-            DoubleVector vote = new DoubleVector(this.ensemble[i].getVotesForInstance(testInstance));
-            if (vote.sumOfValues() > 0.0) {
-                vote.normalize();
-                double acc = this.ensemble[i].evaluator.getPerformanceMeasurements()[1].getValue();
-                if (!this.disableWeightedVote.isSet() && acc > 0.0) {
-                    for (int v = 0; v < vote.numValues(); ++v) {
-                        vote.setValue(v, vote.getValue(v) * acc);
-                    }
-                }
-                combinedVote.addValues(vote);
-            }
-        }
-        return combinedVote.getArrayRef();
+            initEnsemble(instance);
+        double[] voteWeight = memberWeights(this.ensemble.length);
+        boolean weighted = !this.disableWeightedVote.isSet();
+
+        double[][] votes = gatherVotes(this.ensemble.length, instance, i -> {
+            double[] vote = this.ensemble[i].getVotesForInstance(instance);
+            // the evaluator of a tree that has never voted has no accuracy yet
+            double acc = weighted && sumOf(vote) > 0.0 ? this.ensemble[i].evaluator.getPerformanceMeasurements()[1].getValue() : 0.0;
+            voteWeight[i] = acc > 0.0 ? acc : 1.0;
+            return vote;
+        });
+        return combineVotes(votes, voteWeight);
     }
 
     @Override
@@ -260,15 +237,112 @@ public class AdaptiveRandomForestMC extends AbstractClassifierParallel implement
     public void getModelDescription(StringBuilder arg0, int arg1) {
     }
 
+    /**
+     * Drifts, warnings and background trees over the ensemble, then the nodes, leaves, drifts and training time
+     * of every tree position. A tree replaced after a drift keeps the counts of its position.
+     */
     @Override
     protected Measurement[] getModelMeasurementsImpl() {
-        return null;
+        awaitWorkers();
+        List<Measurement> measurements = new ArrayList<>();
+        measurements.add(new Measurement("ensemble size", this.ensemble != null ? this.ensemble.length : 0));
+        if (this.ensemble == null) {
+            return measurements.toArray(new Measurement[measurements.size()]);
+        }
+        int drifts = 0;
+        int warnings = 0;
+        int backgroundLearners = 0;
+        for (ARFBaseLearner learner : this.ensemble) {
+            drifts += learner.numberOfDriftsDetected;
+            warnings += learner.numberOfWarningsDetected;
+            if (learner.bkgLearner != null) backgroundLearners++;
+        }
+        measurements.add(new Measurement("drifts detected", drifts));
+        measurements.add(new Measurement("warnings detected", warnings));
+        measurements.add(new Measurement("background learners training", backgroundLearners));
+        for (int i = 0; i < this.ensemble.length; i++) {
+            ARFBaseLearner learner = this.ensemble[i];
+            measurements.add(new Measurement("tree " + i + " size (nodes)",
+                    memberMeasurement(learner.classifier, "tree size (nodes)")));
+            measurements.add(new Measurement("tree " + i + " size (leaves)",
+                    memberMeasurement(learner.classifier, "tree size (leaves)")));
+            measurements.add(new Measurement("tree " + i + " drifts detected", learner.numberOfDriftsDetected));
+            measurements.add(new Measurement("tree " + i + " training time (milliseconds)", _trainingNanos[i] / 1.0e6));
+        }
+        return measurements.toArray(new Measurement[measurements.size()]);
+    }
+
+    public Classifier[] getSubClassifiers() {
+        if (this.ensemble == null) return null;
+        Classifier[] trees = new Classifier[this.ensemble.length];
+        for (int i = 0; i < this.ensemble.length; i++) trees[i] = this.ensemble[i].classifier;
+        return trees;
+    }
+
+    @Override
+    protected int dropBackgroundLearners() {
+        if (this.ensemble == null) return 0;
+        int dropped = 0;
+        for (ARFBaseLearner learner : this.ensemble) {
+            if (learner.bkgLearner != null) {
+                learner.bkgLearner = null;
+                dropped++;
+            }
+        }
+        return dropped;
+    }
+
+    /**
+     * The tree that frees the most memory for the least accuracy: the largest size times error rate, on the
+     * instances it has been tested on as the weighted vote uses it. A tree just reset is small, so it is not
+     * picked again before it has grown.
+     */
+    @Override
+    protected int memberToShed(boolean[] shed) {
+        int worst = -1;
+        double worstScore = -1.0;
+        long worstBytes = -1;
+        for (int i = 0; i < shed.length; i++) {
+            if (shed[i]) continue;
+            // the tree is member 2 * i of sizedMembers()
+            long bytes = _sizedBytes != null && 2 * i < _sizedBytes.length ? _sizedBytes[2 * i] : 0;
+            double accuracy = this.ensemble[i].evaluator.getPerformanceMeasurements()[1].getValue() / 100.0;
+            double score = bytes * Math.max(0.0, 1.0 - accuracy);
+            if (score > worstScore || (score == worstScore && bytes > worstBytes)) {
+                worst = i;
+                worstScore = score;
+                worstBytes = bytes;
+            }
+        }
+        return worst;
+    }
+
+    /** Resets the tree and its drift detector, as after a drift without a background tree. */
+    @Override
+    protected void resetMember(int index) {
+        this.ensemble[index].reset();
+    }
+
+    /** Every tree followed by its background tree, if it is training one, so swaps and resets are measured again. */
+    @Override
+    protected Classifier[] sizedMembers() {
+        if (this.ensemble == null) return null;
+        Classifier[] members = new Classifier[2 * this.ensemble.length];
+        for (int i = 0; i < this.ensemble.length; i++) {
+            ARFBaseLearner learner = this.ensemble[i];
+            members[2 * i] = learner.classifier;
+            members[2 * i + 1] = learner.bkgLearner != null ? learner.bkgLearner.classifier : null;
+        }
+        return members;
     }
 
     protected void initEnsemble(Instance instance) {
         // Init the ensemble.
         int ensembleSize = this.ensembleSizeOption.getValue();
         this.ensemble = new ARFBaseLearner[ensembleSize];
+        _k = new int[ensembleSize];
+        _active = new int[ensembleSize];
+        _trainingNanos = new long[ensembleSize];
 
         // TODO: this should be an option with default = BasicClassificationPerformanceEvaluator
 //        BasicClassificationPerformanceEvaluator classificationEvaluator = (BasicClassificationPerformanceEvaluator) getPreparedClassOption(this.evaluatorOption);
@@ -338,11 +412,6 @@ public class AdaptiveRandomForestMC extends AbstractClassifierParallel implement
     }
 
 
-    @Override
-    public AtomicInteger getCpuTime() {
-        return _cpuTime;
-    }
-
     @Override
     public void init() throws InterruptedException, ExecutionException {
 
@@ -412,6 +481,11 @@ public class AdaptiveRandomForestMC extends AbstractClassifierParallel implement
         }
 
         public void reset() {
+            reset(AdaptiveRandomForestMC.this.instancesSeen);
+        }
+
+        /** As reset(), instancesSeen being the count of the instance the tree is reset at. */
+        public void reset(long instancesSeen) {
             if (this.useBkgLearner && this.bkgLearner != null) {
                 this.classifier = this.bkgLearner.classifier;
 
@@ -434,9 +508,7 @@ public class AdaptiveRandomForestMC extends AbstractClassifierParallel implement
         }
 
         public void trainOnInstance(Instance instance, double weight, long instancesSeen) {
-            Instance weightedInstance = (Instance) instance.copy();
-            weightedInstance.setWeight(instance.weight() * weight);
-            this.classifier.trainOnInstance(weightedInstance);
+            this.classifier.trainOnInstance(memberInstance(this.indexOriginal, instance, instance.weight() * weight));
 
             if (this.bkgLearner != null)
                 this.bkgLearner.classifier.trainOnInstance(instance);
@@ -478,47 +550,18 @@ public class AdaptiveRandomForestMC extends AbstractClassifierParallel implement
                 if (this.driftDetectionMethod.getChange()) {
                     this.lastDriftOn = instancesSeen;
                     this.numberOfDriftsDetected++;
-                    this.reset();
+                    this.reset(instancesSeen);
                 }
             }
         }
 
         public double[] getVotesForInstance(Instance instance) {
-            DoubleVector vote = new DoubleVector(this.classifier.getVotesForInstance(instance));
-            return vote.getArrayRef();
+            // the tree returns a fresh array, and the ensemble only reads it
+            return this.classifier.getVotesForInstance(instance);
         }
 
         @Override
         public void getDescription(StringBuilder sb, int indent) {
         }
     }
-
-    /***
-     * Inner class to assist with the multi-thread execution.
-     */
-    protected class TrainingRunnable implements Runnable, Callable<Integer> {
-        final private ARFBaseLearner learner;
-        final private Instance instance;
-        final private double weight;
-        final private long instancesSeen;
-
-        public TrainingRunnable(ARFBaseLearner learner, Instance instance,
-                                double weight, long instancesSeen) {
-            this.learner = learner;
-            this.instance = instance;
-            this.weight = weight;
-            this.instancesSeen = instancesSeen;
-        }
-
-        @Override
-        public void run() {
-            learner.trainOnInstance(this.instance, this.weight, this.instancesSeen);
-        }
-
-        @Override
-        public Integer call() throws Exception {
-            run();
-            return 0;
-        }
-    }
 }
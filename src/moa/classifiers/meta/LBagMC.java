@@ -34,15 +34,10 @@ import moa.classifiers.core.driftdetection.ADWIN;
 import moa.classifiers.Classifier;
 import com.yahoo.labs.samoa.instances.Instance;
 
-import moa.core.DoubleVector;
 import moa.core.Measurement;
-import moa.core.MiscUtils;
+import moa.core.Utils;
 
-import java.util.HashSet;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ForkJoinPool;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.stream.IntStream;
 
 /**
  * Leveraging Bagging for evolving data streams using ADWIN. Leveraging Bagging
@@ -96,8 +91,6 @@ public class LBagMC extends AbstractClassifierParallel implements MultiClassClas
     public FlagOption _parallelOption = new FlagOption("parallel", 'p',
             "Run ensemble in parallel.");
 
-    protected double[] randomPoissonArray;
-
     protected Classifier[] ensemble;
 
     protected ADWIN[] ADError;
@@ -106,11 +99,13 @@ public class LBagMC extends AbstractClassifierParallel implements MultiClassClas
 
     protected int[][] matrixCodes;
 
+    /** matrixCodes sliced per class into member bitsets, see codeBitsets */
+    protected long[][] _codeBits;
+
     protected boolean initMatrixCodes = false;
 
-    protected boolean _Change = false;
+    protected volatile boolean _Change = false;
 
-    protected HashSet<Integer> threadIDSet;
 
 
     @Override
@@ -118,7 +113,6 @@ public class LBagMC extends AbstractClassifierParallel implements MultiClassClas
         this.ensemble = new Classifier[this.ensembleSizeOption.getValue()];
         Classifier baseLearner = (Classifier) getPreparedClassOption(this.baseLearnerOption);
         baseLearner.resetLearning();
-        randomPoissonArray = new double[this.ensembleSizeOption.getValue()];
         for (int i = 0; i < this.ensemble.length; i++) {
             this.ensemble[i] = baseLearner.copy();
         }
@@ -126,6 +120,7 @@ public class LBagMC extends AbstractClassifierParallel implements MultiClassClas
         for (int i = 0; i < this.ensemble.length; i++) {
             this.ADError[i] = new ADWIN((double) this.deltaAdwinOption.getValue());
         }
+        initMemberRandom(this.ensemble.length, this.randomSeed);
         this.numberOfChangesDetected = 0;
         if (this.outputCodesOption.isSet()) {
             this.initMatrixCodes = true;
@@ -135,8 +130,6 @@ public class LBagMC extends AbstractClassifierParallel implements MultiClassClas
     @Override
     public void trainOnInstanceImpl(Instance inst) {
         int numClasses = inst.numClasses();
-        double t1 = System.currentTimeMillis();
-        _t1 = t1;
 
         //Output Codes
         if (this.initMatrixCodes) {
@@ -165,192 +158,126 @@ public class LBagMC extends AbstractClassifierParallel implements MultiClassClas
                 } while ((numberOnes - numberZeros) * (numberOnes - numberZeros) > (this.ensemble.length % 2));
 
             }
+            _codeBits = codeBitsets(this.matrixCodes, numClasses);
             this.initMatrixCodes = false;
         }
 
 
-        boolean Change = false;
-        _Change = false;
-        Instance weightedInst = (Instance) inst.copy();
-        double w = this.weightShrinkOption.getValue();
-        int n = ensemble.length;
-        if (_numOfCores != 1) {
-            for (int i = 0; i < this.ensemble.length; i++) {
-                double k = 0.0;
-                switch (this.leveraginBagAlgorithmOption.getChosenIndex()) {
-                    case 0: //LBagMC
-                        k = MiscUtils.poisson(w, this.classifierRandom);
-                        break;
-                    case 1: //LeveragingBagME
-                        double error = this.ADError[i].getEstimation();
-                        k = !this.ensemble[i].correctlyClassifies(weightedInst) ? 1.0 : (this.classifierRandom.nextDouble() < (error / (1.0 - error)) ? 1.0 : 0.0);
-                        break;
-                    case 2: //LeveragingBagHalf
-                        w = 1.0;
-                        k = this.classifierRandom.nextBoolean() ? 0.0 : w;
-                        break;
-                    case 3: //LeveragingBagWT
-                        w = 1.0;
-                        k = 1.0 + MiscUtils.poisson(w, this.classifierRandom);
-                        break;
-                    case 4: //LeveragingSubag
-                        w = 1.0;
-                        k = MiscUtils.poisson(1, this.classifierRandom);
-                        k = (k > 0) ? w : 0;
-                        break;
-
-                }
-                randomPoissonArray[i] = k;
-            }
-                if(_numOfCores == 0)
-                IntStream.range(0, n).parallel().forEach(i -> train(i, inst));
-                else {
-                    try {
-                        _threadpool.submit(() -> IntStream.range(0, n).parallel().forEach(i -> train(i, inst))).get();
-                    } catch (InterruptedException e) {
-                        e.printStackTrace();
-                    } catch (ExecutionException e) {
-                        e.printStackTrace();
-                    }
-                }
-
+        if (usePinnedWorkers()) {
+            // drifts signalled by the workers are applied at the next synchronizeWorkers()
+            dispatchToWorkers(inst, this.ensemble.length);
+            return;
+        }
 
-        }else if (_numOfCores == 1){
-            //Train ensemble of classifiers
-            for (int i = 0; i < this.ensemble.length; i++) {
-                double k = 0.0;
-                switch (this.leveraginBagAlgorithmOption.getChosenIndex()) {
-                    case 0: //LBagMC
-                        k = MiscUtils.poisson(w, this.classifierRandom);
-                        break;
-                    case 1: //LeveragingBagME
-                        double error = this.ADError[i].getEstimation();
-                        k = !this.ensemble[i].correctlyClassifies(weightedInst) ? 1.0 : (this.classifierRandom.nextDouble() < (error / (1.0 - error)) ? 1.0 : 0.0);
-                        break;
-                    case 2: //LeveragingBagHalf
-                        w = 1.0;
-                        k = this.classifierRandom.nextBoolean() ? 0.0 : w;
-                        break;
-                    case 3: //LeveragingBagWT
-                        w = 1.0;
-                        k = 1.0 + MiscUtils.poisson(w, this.classifierRandom);
-                        break;
-                    case 4: //LeveragingSubag
-                        w = 1.0;
-                        k = MiscUtils.poisson(1, this.classifierRandom);
-                        k = (k > 0) ? w : 0;
-                        break;
-                }
-                if (k > 0) {
-                    if (this.outputCodesOption.isSet()) {
-                        weightedInst.setClassValue((double) this.matrixCodes[i][(int) inst.classValue()]);
-                    }
-                    weightedInst.setWeight(inst.weight() * k);
-                    this.ensemble[i].trainOnInstance(weightedInst);
-                }
-                boolean correctlyClassifies = this.ensemble[i].correctlyClassifies(weightedInst);
-                double ErrEstim = this.ADError[i].getEstimation();
-                if (this.ADError[i].setInput(correctlyClassifies ? 0 : 1)) {
-                    if (this.ADError[i].getEstimation() > ErrEstim) {
-                        Change = true;
-                    }
-                }
-            }
-            double t2 = System.currentTimeMillis();
-            _cpuTime.addAndGet((int) (t2 - _t1));
-        } else{
+        _Change = false;
+        forEachMember(this.ensemble.length, i -> trainMember(i, inst));
 
+        if (_Change) {
+            resetWorstClassifier();
+        }
+    }
 
-        }       // System.out.println("cycle");
-        if (Change || _Change) {
-            //System.out.println("test");
-            numberOfChangesDetected++;
-            double max = 0.0;
-            int imax = -1;
-            for (int i = 0; i < this.ensemble.length; i++) {
-                if (max < this.ADError[i].getEstimation()) {
-                    max = this.ADError[i].getEstimation();
-                    imax = i;
-                }
-            }
-            if (imax != -1) {
-                this.ensemble[imax].resetLearning();
-                //this.ensemble[imax].trainOnInstance(inst);
-                this.ADError[imax] = new ADWIN((double) this.deltaAdwinOption.getValue());
+    /** Counts a change and replaces the member with the highest ADWIN error estimate by a fresh one. */
+    protected void resetWorstClassifier() {
+        numberOfChangesDetected++;
+        double max = 0.0;
+        int imax = -1;
+        for (int i = 0; i < this.ensemble.length; i++) {
+            if (max < this.ADError[i].getEstimation()) {
+                max = this.ADError[i].getEstimation();
+                imax = i;
             }
         }
+        if (imax != -1) {
+            this.ensemble[imax].resetLearning();
+            //this.ensemble[imax].trainOnInstance(inst);
+            this.ADError[imax] = new ADWIN((double) this.deltaAdwinOption.getValue());
+        }
     }
 
-    public void train(int index, Instance instance) {
-
-        threadIDSet.add((int) Thread.currentThread().getId());
-        double w = this.weightShrinkOption.getValue();
-        Instance weightedInst = (Instance) instance.copy();
-        double k = this.randomPoissonArray[index];
+    /** Waits for the pinned workers and applies a drift they signalled since the last synchronisation. */
+    protected void synchronizeWorkers() {
+        if (!usePinnedWorkers()) return;
+        awaitWorkers();
+        if (_Change) {
+            _Change = false;
+            resetWorstClassifier();
+        }
+    }
 
+    @Override
+    protected void trainMember(int index, Instance instance) {
+        boolean outputCodes = this.outputCodesOption.isSet();
+        double target = outputCodes ? this.matrixCodes[index][(int) instance.classValue()] : instance.classValue();
+
+        // the class value plays no part in a vote, so the vote from the last prediction on instance can be reused
+        // for the member before training: by LeveragingBagME, and by ADWIN if the member draws weight 0
+        double[] votes = takeVotes(index, instance);
+        if (votes == null && this.leveraginBagAlgorithmOption.getChosenIndex() == 1) {
+            votes = this.ensemble[index].getVotesForInstance(instance);
+        }
 
+        double k = drawWeight(index, votes != null && Utils.maxIndex(votes) == (int) target);
         if (k > 0) {
-            if (this.outputCodesOption.isSet()) {
-                weightedInst.setClassValue((double) this.matrixCodes[index][(int) instance.classValue()]);
-            }
-            weightedInst.setWeight(instance.weight() * k);
+            double weight = instance.weight() * k;
+            Instance weightedInst = outputCodes ? memberInstance(index, instance, weight, target) : memberInstance(index, instance, weight);
             this.ensemble[index].trainOnInstance(weightedInst);
+            votes = null;
         }
-        boolean correctlyClassifies = this.ensemble[index].correctlyClassifies(weightedInst);
+        // ADWIN sees whether the member classifies instance right after training on it, as in LeveragingBag
+        if (votes == null) votes = this.ensemble[index].getVotesForInstance(instance);
+        boolean correctlyClassifies = Utils.maxIndex(votes) == (int) target;
         double ErrEstim = this.ADError[index].getEstimation();
         if (this.ADError[index].setInput(correctlyClassifies ? 0 : 1)) {
             if (this.ADError[index].getEstimation() > ErrEstim) {
                 _Change = true;
             }
         }
-        double t2 = System.currentTimeMillis();
-        _cpuTime.addAndGet((int) (t2 - _t1));
 
     }
 
+    /**
+     * Draws the training weight of member index from the member's own random stream. correctlyClassifies
+     * tells whether the member predicted the instance right before training on it.
+     */
+    protected double drawWeight(int index, boolean correctlyClassifies) {
+        MemberRandom r = _memberRandom[index];
+        switch (this.leveraginBagAlgorithmOption.getChosenIndex()) {
+            case 0: //LBagMC
+                return poisson(this.weightShrinkOption.getValue(), r);
+            case 1: //LeveragingBagME
+                double error = this.ADError[index].getEstimation();
+                return !correctlyClassifies ? 1.0 : (r.nextDouble() < (error / (1.0 - error)) ? 1.0 : 0.0);
+            case 2: //LeveragingBagHalf
+                return r.nextBoolean() ? 0.0 : 1.0;
+            case 3: //LeveragingBagWT
+                return 1.0 + poisson(1.0, r);
+            case 4: //LeveragingSubag
+                return poisson(1, r) > 0 ? 1.0 : 0.0;
+            default:
+                return 0.0;
+        }
+    }
+
     @Override
-    public double[] getVotesForInstance(Instance inst) {
-        double t1 = System.currentTimeMillis();
-        _t1 = t1;
+    public double[] getVotesForInstanceImpl(Instance inst) {
+        synchronizeWorkers();
 
         if (this.outputCodesOption.isSet()) {
             return getVotesForInstanceBinary(inst);
         }
-        DoubleVector combinedVote = new DoubleVector();
-        for (int i = 0; i < this.ensemble.length; i++) {
-            DoubleVector vote = new DoubleVector(this.ensemble[i].getVotesForInstance(inst));
-            if (vote.sumOfValues() > 0.0) {
-                vote.normalize();
-                combinedVote.addValues(vote);
-            }
-        }
-        return combinedVote.getArrayRef();
+        double[][] votes = gatherVotes(this.ensemble.length, inst, i -> this.ensemble[i].getVotesForInstance(inst));
+        return combineVotes(votes, null);
     }
 
     public double[] getVotesForInstanceBinary(Instance inst) {
-        double combinedVote[] = new double[(int) inst.numClasses()];
-        Instance weightedInst = (Instance) inst.copy();
-        if (this.initMatrixCodes == false) {
-            for (int i = 0; i < this.ensemble.length; i++) {
-                //Replace class by OC
-                weightedInst.setClassValue((double) this.matrixCodes[i][(int) inst.classValue()]);
-
-                double vote[];
-                vote = this.ensemble[i].getVotesForInstance(weightedInst);
-                //Binary Case
-                int voteClass = 0;
-                if (vote.length == 2) {
-                    voteClass = (vote[1] > vote[0] ? 1 : 0);
-                }
-                //Update votes
-                for (int j = 0; j < inst.numClasses(); j++) {
-                    if (this.matrixCodes[i][j] == voteClass) {
-                        combinedVote[j] += 1;
-                    }
-                }
-            }
+        if (this.initMatrixCodes) {
+            return new double[inst.numClasses()];
         }
-        return combinedVote;
+        // the class value plays no part in a prediction, so members share inst instead of a relabelled copy each
+        double[][] votes = gatherVotes(this.ensemble.length, inst, i -> this.ensemble[i].getVotesForInstance(inst));
+        if (_codeBits == null) _codeBits = codeBitsets(this.matrixCodes, inst.numClasses());
+        return combineCodeVotes(votes, _codeBits, inst.numClasses());
     }
 
     @Override
@@ -371,6 +298,13 @@ public class LBagMC extends AbstractClassifierParallel implements MultiClassClas
         };
     }
 
+    /** Resets the member and its error estimate, as when ADWIN detects a change in the member's error. */
+    @Override
+    protected void resetMember(int index) {
+        this.ensemble[index].resetLearning();
+        this.ADError[index] = new ADWIN((double) this.deltaAdwinOption.getValue());
+    }
+
     @Override
     public Classifier[] getSubClassifiers() {
         return this.ensemble.clone();
@@ -385,8 +319,9 @@ public class LBagMC extends AbstractClassifierParallel implements MultiClassClas
     }
 
     @Override
-    public AtomicInteger getCpuTime() {
-        return _cpuTime;
+    public void trainingHasEnded() {
+        synchronizeWorkers();
+        super.trainingHasEnded();
     }
 
     @Override
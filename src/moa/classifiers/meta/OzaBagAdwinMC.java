@@ -29,16 +29,13 @@ import moa.classifiers.AbstractClassifierParallel;
 import moa.classifiers.Classifier;
 import com.yahoo.labs.samoa.instances.Instance;
 
-import moa.core.DoubleVector;
 import moa.core.Measurement;
-import moa.core.MiscUtils;
+import moa.core.Utils;
 import moa.options.ClassOption;
 import com.github.javacliparser.IntOption;
 
-import java.util.HashSet;
+import java.util.Arrays;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.stream.IntStream;
 
 /**
  * Bagging for evolving data streams using ADWIN.
@@ -84,7 +81,8 @@ import java.util.stream.IntStream;
  * <code>OzaBagAdwinMC -l HoeffdingTreeNBAdaptive -s 10</code>
  * <p>Parameters:</p> <ul>
  * <li>-l : Classiﬁer to train</li>
- * <li>-s : The number of models in the bag</li> </ul>
+ * <li>-s : The number of models in the bag</li>
+ * <li>-b : The number of instances buffered before training (mini-batch)</li> </ul>
  *
  * @author Albert Bifet (abifet at cs dot waikato dot ac dot nz)
  * @version $Revision: 7 $
@@ -105,23 +103,26 @@ public class OzaBagAdwinMC extends AbstractClassifierParallel implements MultiCl
     public IntOption ensembleSizeOption = new IntOption("ensembleSize", 's',
             "The number of models in the bag.", 10, 1, Integer.MAX_VALUE);
 
+    public IntOption batchSizeOption = new IntOption("batchSize", 'b',
+            "The number of instances buffered before every member is trained on them in one task (1 = no buffering). Drift resets happen once per batch.",
+            1, 1, Integer.MAX_VALUE);
 
 
     protected Classifier[] ensemble;
 
     protected ADWIN[] ADError;
 
-    protected boolean _Change;
+    protected volatile boolean _Change;
 
-    protected double[] _randomPoissonArray;
 
 
-    protected HashSet<Integer> threadIDSet;
+    /** Instances buffered since the last batch was trained */
+    protected Instance[] _batch;
+    protected int _batchCount;
 
 
     @Override
     public void resetLearningImpl() {
-        _randomPoissonArray = new double[this.ensembleSizeOption.getValue()];
         this.ensemble = new Classifier[this.ensembleSizeOption.getValue()];
         Classifier baseLearner = (Classifier) getPreparedClassOption(this.baseLearnerOption);
         baseLearner.resetLearning();
@@ -132,113 +133,115 @@ public class OzaBagAdwinMC extends AbstractClassifierParallel implements MultiCl
         for (int i = 0; i < this.ensemble.length; i++) {
             this.ADError[i] = new ADWIN();
         }
+        initMemberRandom(this.ensemble.length, this.randomSeed);
+        _batch = new Instance[this.batchSizeOption.getValue()];
+        _batchCount = 0;
     }
 
     @Override
     public void trainOnInstanceImpl(Instance inst) {
-        boolean Change = false;
-        double t1 = System.currentTimeMillis();
-        _t1 = t1;
+        if (_batch.length > 1) {
+            _batch[_batchCount++] = inst;
+            if (_batchCount == _batch.length) trainBatch();
+            return;
+        }
 
-        _Change = false;
-        if (_numOfCores == 0) {
-            for (int i = 0; i < this.ensemble.length; i++) {
-                int k = MiscUtils.poisson(1.0, this.classifierRandom);
-                _randomPoissonArray[i] = k;
-            }
+        if (usePinnedWorkers()) {
+            // drifts signalled by the workers are applied at the next synchronizeWorkers()
+            dispatchToWorkers(inst, this.ensemble.length);
+            return;
+        }
 
+        _Change = false;
+        forEachMember(this.ensemble.length, i -> trainMember(i, inst));
 
-            int n = ensemble.length;
-
-                IntStream.range(0, n).parallel().forEach(i -> train(i, inst));
-
-        }else if (_numOfCores == 1){
-            for (int i = 0; i < this.ensemble.length; i++) {
-                int k = MiscUtils.poisson(1.0, this.classifierRandom);
-                if (k > 0) {
-                    Instance weightedInst = (Instance) inst.copy();
-                    weightedInst.setWeight(inst.weight() * k);
-                    this.ensemble[i].trainOnInstance(weightedInst);
-                }
-                boolean correctlyClassifies = this.ensemble[i].correctlyClassifies(inst);
-                double ErrEstim = this.ADError[i].getEstimation();
-                if (this.ADError[i].setInput(correctlyClassifies ? 0 : 1)) {
-                    if (this.ADError[i].getEstimation() > ErrEstim) {
-                        Change = true;
-                    }
-                }
-            }
-            double t2 = System.currentTimeMillis();
-            _cpuTime.addAndGet((int) (t2 - _t1));
-
-        } else {
-            int n = ensemble.length;
-            try {
-                _threadpool.submit(() -> IntStream.range(0, n).parallel().forEach(i -> train(i, inst))).get();
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            } catch (ExecutionException e) {
-                e.printStackTrace();
-            }
+        if (_Change) {
+            resetWorstClassifier();
         }
 
-        if (Change || _Change) {
-            double max = 0.0;
-            int imax = -1;
-            for (int i = 0; i < this.ensemble.length; i++) {
-                if (max < this.ADError[i].getEstimation()) {
-                    max = this.ADError[i].getEstimation();
-                    imax = i;
-                }
-            }
-            if (imax != -1) {
-                this.ensemble[imax].resetLearning();
-                //this.ensemble[imax].trainOnInstance(inst);
-                this.ADError[imax] = new ADWIN();
+    }
+
+    /** Replaces the member with the highest ADWIN error estimate by a fresh one. */
+    protected void resetWorstClassifier() {
+        double max = 0.0;
+        int imax = -1;
+        for (int i = 0; i < this.ensemble.length; i++) {
+            if (max < this.ADError[i].getEstimation()) {
+                max = this.ADError[i].getEstimation();
+                imax = i;
             }
         }
-
+        if (imax != -1) {
+            this.ensemble[imax].resetLearning();
+            //this.ensemble[imax].trainOnInstance(inst);
+            this.ADError[imax] = new ADWIN();
+        }
     }
 
+    /**
+     * Trains every member on all buffered instances, one task per member, and empties the buffer.
+     * Until then predictions are made by the model committed at the previous batch.
+     */
+    protected void trainBatch() {
+        if (_batchCount == 0) return;
+        _Change = false;
+        // the last prediction was on the last instance of the batch, made before training on the others
+        forgetVotes();
+
+        forEachMember(this.ensemble.length, this::trainOnBatch);
 
-    public void train(int i, Instance inst) {
-        double k = _randomPoissonArray[i];
-//        threadIDSet.add((int) Thread.currentThread().getId());
+        if (_Change) {
+            resetWorstClassifier();
+        }
+        Arrays.fill(_batch, 0, _batchCount, null);
+        _batchCount = 0;
+    }
+
+    public void trainOnBatch(int i) {
+        for (int j = 0; j < _batchCount; j++) {
+            trainMember(i, _batch[j]);
+        }
+    }
 
+    @Override
+    protected void trainMember(int i, Instance inst) {
+        // ADWIN sees whether the member classifies inst right after training on it, as in OzaBagAdwin; a member
+        // drawing weight 0 is unchanged, so the vote from the last prediction on inst is the same
+        double[] votes = takeVotes(i, inst);
+        int k = poisson(1.0, _memberRandom[i]);
         if (k > 0) {
-            Instance weightedInst = (Instance) inst.copy();
-            weightedInst.setWeight(inst.weight() * k);
-            this.ensemble[i].trainOnInstance(weightedInst);
+            this.ensemble[i].trainOnInstance(memberInstance(i, inst, inst.weight() * k));
+            votes = null;
         }
-        boolean correctlyClassifies = this.ensemble[i].correctlyClassifies(inst);
+        if (votes == null) votes = this.ensemble[i].getVotesForInstance(inst);
+        boolean correctlyClassifies = Utils.maxIndex(votes) == (int) inst.classValue();
         double ErrEstim = this.ADError[i].getEstimation();
         if (this.ADError[i].setInput(correctlyClassifies ? 0 : 1)) {
             if (this.ADError[i].getEstimation() > ErrEstim) {
                 _Change = true;
             }
         }
-        double t2 = System.currentTimeMillis();
-        _cpuTime.addAndGet((int) (t2 - _t1));
 
     }
 
 
+    /** Waits for the pinned workers and applies a drift they signalled since the last synchronisation. */
+    protected void synchronizeWorkers() {
+        if (!usePinnedWorkers()) return;
+        awaitWorkers();
+        if (_Change) {
+            _Change = false;
+            resetWorstClassifier();
+        }
+    }
+
     @Override
-    public double[] getVotesForInstance(Instance inst) {
-        double t1 = System.currentTimeMillis();
-        _t1 = t1;
+    public double[] getVotesForInstanceImpl(Instance inst) {
+        synchronizeWorkers();
 
-        DoubleVector combinedVote = new DoubleVector();
-        for (int i = 0; i < this.ensemble.length; i++) {
-            DoubleVector vote = new DoubleVector(this.ensemble[i].getVotesForInstance(inst));
-            if (vote.sumOfValues() > 0.0) {
-                vote.normalize();
-                combinedVote.addValues(vote);
-            }
-        }
-        double t2 = System.currentTimeMillis();
-        _cpuTime.addAndGet((int) (t2 - _t1));
-        return combinedVote.getArrayRef();
+        double[][] votes = gatherVotes(this.ensemble.length, inst, i -> this.ensemble[i].getVotesForInstance(inst));
+        double[] combinedVote = combineVotes(votes, null);
+        return combinedVote;
     }
 
     @Override
@@ -257,6 +260,13 @@ public class OzaBagAdwinMC extends AbstractClassifierParallel implements MultiCl
                 this.ensemble != null ? this.ensemble.length : 0)};
     }
 
+    /** Resets the member and its error estimate, as when ADWIN detects a change in the member's error. */
+    @Override
+    protected void resetMember(int index) {
+        this.ensemble[index].resetLearning();
+        this.ADError[index] = new ADWIN();
+    }
+
     @Override
     public Classifier[] getSubClassifiers() {
         return this.ensemble.clone();
@@ -272,8 +282,10 @@ public class OzaBagAdwinMC extends AbstractClassifierParallel implements MultiCl
 
 
     @Override
-    public AtomicInteger getCpuTime() {
-        return _cpuTime;
+    public void trainingHasEnded() {
+        trainBatch();
+        synchronizeWorkers();
+        super.trainingHasEnded();
     }
 
     @Override
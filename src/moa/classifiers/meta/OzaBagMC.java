@@ -23,22 +23,24 @@ package moa.classifiers.meta;
 
 import moa.classifiers.AbstractClassifierParallel;
 import moa.classifiers.Classifier;
+import moa.classifiers.core.parallel.PoolRegistry;
 import com.yahoo.labs.samoa.instances.Instance;
 
 import moa.classifiers.Multithreading;
 import moa.classifiers.MultiClassClassifier;
-import moa.core.DoubleVector;
 import moa.core.Measurement;
-import moa.core.MiscUtils;
 import moa.options.ClassOption;
 import com.github.javacliparser.IntOption;
 import com.github.javacliparser.FlagOption;
 
-import java.util.Random;
 import java.util.Arrays;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ForkJoinPool;
-import java.util.stream.IntStream;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * Incremental on-line bagging of Oza and Russell.
@@ -56,6 +58,8 @@ import java.util.stream.IntStream;
  * <p>Parameters:</p> <ul>
  * <li>-l : Classifier to train</li>
  * <li>-n : The ensemble size</li>
+ * <li>-b : The number of instances buffered before training (mini-batch)</li>
+ * <li>-L : Train in the background, at most this many instances behind; not combined with -b</li>
  * <li>-p : Run in parallel</li>
  * <li>-s : The random seed</li> </ul>
  *
@@ -81,18 +85,36 @@ public class OzaBagMC extends AbstractClassifierParallel implements MultiClassCl
     public IntOption _randomSeedOption = new IntOption("randomSeed", 's',
             "The random seed.", 42, -Integer.MAX_VALUE, Integer.MAX_VALUE);
 
+    public IntOption _batchSizeOption = new IntOption("batchSize", 'b',
+            "The number of instances buffered before every member is trained on them in one task (1 = no buffering). "
+                    + "Not combined with maxLag.", 1, 1, Integer.MAX_VALUE);
+
+    public IntOption _maxLagOption = new IntOption("maxLag", 'L',
+            "Train in the background, at most this many instances behind the stream; training an instance blocks "
+                    + "once the lag is reached. Every member votes as trained on a whole number of instances, at most "
+                    + "maxLag behind. 0 trains synchronously; batchSize must be 1 otherwise.", 0, 0, Integer.MAX_VALUE);
+
 
     protected Classifier[] _classifiers;
-    protected Instance _instance;
-    protected Random _r;
+    /** Poisson weight of every member for the current instance, and the members whose weight is not 0 */
     protected int[] _weight;
+    protected int[] _active;
 
+    /** Instances buffered since the last batch was trained */
+    protected Instance[] _batch;
+    protected int _batchCount;
+
+    /** Background training when maxLag is set; not serialised, started on the first instance */
+    protected transient AsyncTrainer _asyncTrainer;
 
 
 
     public void resetLearningImpl() {
+        if (_maxLagOption.getValue() > 0 && _batchSizeOption.getValue() > 1) {
+            // the background trainer already trains in steps of up to maxLag instances
+            throw new IllegalArgumentException("batchSize and maxLag cannot be combined");
+        }
 
-        _r = new Random( _randomSeedOption.getValue());
         int ensembleSize = _ensembleSizeOption.getValue();
         Classifier baseLearner = (Classifier) getPreparedClassOption(_baseLearnerOption);
         baseLearner.resetLearning();
@@ -100,46 +122,80 @@ public class OzaBagMC extends AbstractClassifierParallel implements MultiClassCl
         for (int i = 0; i < ensembleSize; i++) {
             _classifiers[i] = (Classifier) baseLearner.copy();
         }
+        initMemberRandom(ensembleSize, _randomSeedOption.getValue());
         _weight = new int[ensembleSize];
+        _active = new int[ensembleSize];
+
+        _batch = new Instance[_batchSizeOption.getValue()];
+        _batchCount = 0;
     }
 
 
     public void trainOnInstanceImpl(Instance inst)  {
 
-        double t1 = System.currentTimeMillis();
-        _t1 = t1;
 
         int n = _classifiers.length;
-        for (int i = 0; i < n; i++) _weight[i] = MiscUtils.poisson(1.0, _r);
-
-        if (_numOfCores == 0) {
 
-            IntStream.range(0, n).parallel().forEach(i -> train(i, inst));
+        if (_maxLagOption.getValue() > 0) {
+            rethrowAsyncFailure();
+            if (_asyncTrainer == null) {
+                // the trainer thread counts against the thread cap of the PoolRegistry
+                PoolRegistry.acquireThreads(1);
+                _asyncTrainer = new AsyncTrainer(_maxLagOption.getValue());
+                _asyncTrainer.start();
+            }
+            _asyncTrainer.submit(inst);
+            return;
+        }
 
-        } else if (_numOfCores == 1) {
-            for (int i = 0; i < n; i++) train(i, inst);
-            double t2 = System.currentTimeMillis();
-            _cpuTime.addAndGet((int) (t2 - _t1));
+        if (_batch.length > 1) {
+            _batch[_batchCount++] = inst;
+            if (_batchCount == _batch.length) trainBatch();
+            return;
+        }
 
+        if (usePinnedWorkers()) {
+            dispatchToWorkers(inst, n);
         } else {
-            _threadpool.submit(() -> IntStream.range(0, n).parallel().forEach(i -> train(i, inst)));
+            // a member drawing weight 0 has nothing to do, so it is not dispatched at all
+            int count = 0;
+            for (int i = 0; i < n; i++) {
+                _weight[i] = poisson(1.0, _memberRandom[i]);
+                if (_weight[i] > 0) _active[count++] = i;
+            }
+            forEachMember(_active, count, i -> trainMember(i, inst, _weight[i]));
         }
     }
 
 
 
-    public void train(int index, Instance instance) {
+    protected void trainMember(int index, Instance instance) {
+        trainMember(index, instance, poisson(1.0, _memberRandom[index]));
+    }
 
+    protected void trainMember(int index, Instance instance, int k) {
+        if (k > 0) {
+            _classifiers[index].trainOnInstance(memberInstance(index, instance, instance.weight() * k));
+        }
+    }
 
+    /**
+     * Trains every member on all buffered instances, one task per member, and empties the buffer.
+     * Until then predictions are made by the model committed at the previous batch.
+     */
+    protected void trainBatch() {
+        if (_batchCount == 0) return;
 
-        int k = _weight[index];
-        if (k > 0) {
-            Instance weightedInst = (Instance) instance.copy();
-            weightedInst.setWeight(instance.weight() * k);
-            _classifiers[index].trainOnInstance(weightedInst);
+        forEachMember(_classifiers.length, this::trainOnBatch);
+
+        Arrays.fill(_batch, 0, _batchCount, null);
+        _batchCount = 0;
+    }
+
+    public void trainOnBatch(int index) {
+        for (int j = 0; j < _batchCount; j++) {
+            trainMember(index, _batch[j]);
         }
-        double t2 = System.currentTimeMillis();
-        _cpuTime.addAndGet((int) (t2 - _t1));
     }
 
     //Initial Method Of algorithm incase developers want to use it.
@@ -148,49 +204,99 @@ public class OzaBagMC extends AbstractClassifierParallel implements MultiClassCl
     }
 
 
-    public double[] getVotesForInstance(Instance instance) {
-        double t1 = System.currentTimeMillis();
-        _t1 = t1;
-        if (_numOfCores == 0) {
-            double sum = 0.0;
-            _instance = instance;
-            double[] votes =
-                    Arrays.asList(_classifiers)
-                    .parallelStream()
-                    .collect(Predictor::new, Predictor::accept, Predictor::combine)
-                    .getVotes();
-
-            for (double v: votes) sum += v;
+    public double[] getVotesForInstanceImpl(Instance instance) {
+        awaitWorkers();
+        rethrowAsyncFailure();
+        AsyncTrainer trainer = _asyncTrainer;
+        if (trainer == null) return vote(instance);
+        // every member is locked only while it votes, so the trainer goes on with the others meanwhile
+        double[][] votes = gatherVotes(_classifiers.length, instance, i -> {
+            Lock lock = trainer._memberLocks[i].readLock();
+            lock.lock();
+            try {
+                return _classifiers[i].getVotesForInstance(instance);
+            } finally {
+                lock.unlock();
+            }
+        });
+        return sumVotes(votes);
+    }
 
-            if (sum > 0.0) {
-                sum = 1.0/sum;
-                final double sumF = sum;
+    protected double[] vote(Instance instance) {
+        // members vote in parallel unless coreSize is 1, but are summed in member order
+        double[][] votes = gatherVotes(_classifiers.length, instance, i -> _classifiers[i].getVotesForInstance(instance));
+        return sumVotes(votes);
+    }
 
-                for (int i = 0; i < votes.length; i++) {
-                    votes[i] *= sum;
-                }
+    @Override
+    public long estimatedByteSize() {
+        AsyncTrainer trainer = _asyncTrainer;
+        if (trainer == null) return super.estimatedByteSize();
+        trainer.lockMembers(false);
+        try {
+            return super.estimatedByteSize();
+        } finally {
+            trainer.unlockMembers(false);
+        }
+    }
 
-            }
-            return votes;
+    @Override
+    public long enforceMemoryBudget() {
+        AsyncTrainer trainer = _asyncTrainer;
+        if (trainer == null) return super.enforceMemoryBudget();
+        trainer.lockMembers(true);
+        try {
+            return super.enforceMemoryBudget();
+        } finally {
+            trainer.unlockMembers(true);
+        }
+    }
 
-        } else {
+    /** Trains the instances submitted to the background trainer first, so the checkpoint holds all of them. */
+    @Override
+    public Classifier[] checkpointMembers() {
+        AsyncTrainer trainer = _asyncTrainer;
+        if (trainer != null) trainer.await();
+        return super.checkpointMembers();
+    }
 
-            DoubleVector combinedVote = new DoubleVector();
-            for (Classifier cl: _classifiers) {
-                DoubleVector vote = new DoubleVector(cl.getVotesForInstance(instance));
-                combinedVote.addValues(vote);
-            }
-            combinedVote.normalize();
-            double t2 = System.currentTimeMillis();
-            _cpuTime.addAndGet((int) (t2 - _t1));
-            return combinedVote.getArrayRef();
+    /**
+     * Waits until the background trainer has caught up, then stops it. Throws the failure that stopped the
+     * trainer, if any, as forEachMember throws the failure of a member task.
+     */
+    protected void stopAsyncTrainer() {
+        AsyncTrainer trainer = _asyncTrainer;
+        if (trainer == null) return;
+        trainer.await();
+        trainer.shutdown();
+        try {
+            trainer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
+        _asyncTrainer = null;
+        PoolRegistry.releaseThreads(1);
+        Throwable failure = trainer._failure;
+        if (failure instanceof Error) throw (Error) failure;
+        if (failure != null) throw new RuntimeException("Training the members failed on " + trainer.getName(), failure);
+    }
+
+    /** Stops the background trainer and throws its failure if training failed on it. */
+    protected void rethrowAsyncFailure() {
+        AsyncTrainer trainer = _asyncTrainer;
+        if (trainer != null && trainer._failure != null) stopAsyncTrainer();
+    }
 
+    @Override
+    protected void stopBackgroundTraining() {
+        stopAsyncTrainer();
     }
 
     // Avoids Thread Pool Leaking
     public void trainingHasEnded(){
-        _threadpool.shutdown();
+        stopAsyncTrainer();
+        trainBatch();
+        super.trainingHasEnded();
 
     }
 
@@ -203,52 +309,130 @@ public class OzaBagMC extends AbstractClassifierParallel implements MultiClassCl
     }
 
     protected Measurement[] getModelMeasurementsImpl() {
-        return new Measurement[]{new Measurement("ensemble size", _classifiers == null ? 0 : _classifiers.length)};
+        AsyncTrainer trainer = _asyncTrainer;
+        if (trainer == null) {
+            return new Measurement[]{new Measurement("ensemble size", _classifiers == null ? 0 : _classifiers.length)};
+        }
+        return new Measurement[]{new Measurement("ensemble size", _classifiers == null ? 0 : _classifiers.length),
+                new Measurement("model version (instances trained)", trainer._version),
+                new Measurement("training lag (instances)", trainer._submitted - trainer._version),
+                new Measurement("training backpressure waits", trainer._backpressureWaits)};
     }
 
     public Classifier[] getSubClassifiers() {
         return Arrays.copyOf(_classifiers, _classifiers.length);
     }
 
+    /**
+     * Trains the members on the submitted instances on its own thread, so the learner's thread can go on
+     * predicting. Instances are trained in submission order in steps of up to maxLag at once, every member in
+     * one task per step; every member draws its weights from its own stream, so the members end up exactly as
+     * when training synchronously. A member is write-locked while it trains on a step and read-locked while it
+     * votes, so training and prediction only wait for each other on the same member. A prediction made after
+     * submitting instance t therefore sees every member trained on v instances with t - maxLag <= v <= t, but
+     * not all members on the same v. Submitted instances must not be changed afterwards.
+     *
+     * <p>A failure stops the trainer; the learner's thread throws it on its next call.</p>
+     */
+    protected class AsyncTrainer extends Thread {
+
+        private final LinkedBlockingQueue<Instance> _queue = new LinkedBlockingQueue<>();
+        /** One permit for every instance training may still fall behind by */
+        private final Semaphore _lag;
+        private final Instance[] _step;
+        /** Lock of every member: write-locked while a step trains it, read-locked while it votes */
+        final ReentrantReadWriteLock[] _memberLocks;
+        /** Failure that stopped the trainer, for the learner's thread to throw */
+        volatile Throwable _failure;
+        /** Instances submitted, only written by the learner's thread */
+        volatile long _submitted;
+        /** Instances the members have been trained on */
+        volatile long _version;
+        /** Times submit() had to wait for the trainer */
+        long _backpressureWaits;
+        private volatile boolean _running = true;
+
+        AsyncTrainer(int maxLag) {
+            super("OzaBagMC-AsyncTrainer");
+            setDaemon(true);
+            _lag = new Semaphore(maxLag);
+            _step = new Instance[maxLag];
+            _memberLocks = new ReentrantReadWriteLock[_classifiers.length];
+            for (int i = 0; i < _memberLocks.length; i++) _memberLocks[i] = new ReentrantReadWriteLock(true);
+        }
 
+        /** Locks every member in index order, so the ensemble can be read or changed as a whole. */
+        void lockMembers(boolean write) {
+            for (ReentrantReadWriteLock lock : _memberLocks) (write ? lock.writeLock() : lock.readLock()).lock();
+        }
 
+        void unlockMembers(boolean write) {
+            for (ReentrantReadWriteLock lock : _memberLocks) (write ? lock.writeLock() : lock.readLock()).unlock();
+        }
 
-    //======================================================================
-    //
-    // utility class for the parallel "collect" of predictions
-    //
-    //======================================================================
-
-    class Predictor
-    {
-        private double[] _votes;
-
-        public double[] getVotes() { return _votes; }
-
-        public void updateVotes(double[] a, double[] b) {
-
-            double[] target = (a.length >= b.length) ? a : b;
-            double[] source = (a.length >= b.length) ? b : a;
-
-            for (int i = 0; i < source.length; i++) {
-                target[i] += source[i];
+        /** Queues inst for training, first waiting while maxLag instances are still untrained. */
+        void submit(Instance inst) {
+            if (!_lag.tryAcquire()) {
+                _backpressureWaits++;
+                _lag.acquireUninterruptibly();
             }
-            _votes = target;
+            _submitted++;
+            _queue.add(inst);
         }
 
-        public void accept(Classifier cl) {
-            double[] votes = cl.getVotesForInstance(_instance);
-            if (_votes == null) {
-                _votes = votes;
-            } else {
-                updateVotes(_votes, votes);
-            }
+        /** Returns once every submitted instance has been trained. */
+        void await() {
+            while (_version != _submitted && isAlive()) LockSupport.parkNanos(20000);
         }
 
-        public void combine(Predictor other) {
-            updateVotes(_votes, other._votes);
+        void shutdown() {
+            _running = false;
+            interrupt();
         }
 
+        @Override
+        public void run() {
+            while (true) {
+                Instance first;
+                try {
+                    first = _queue.poll(100, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    if (_running) continue;
+                    return;
+                }
+                if (first == null) {
+                    if (!_running) return;
+                    continue;
+                }
+                int count = 0;
+                _step[count++] = first;
+                for (Instance inst; count < _step.length && (inst = _queue.poll()) != null; ) _step[count++] = inst;
+                int stepSize = count;
+
+                long start = threadCpuTime();
+                try {
+                    enterPhase(_trainCpuTime);
+                    forEachMember(_classifiers.length, i -> {
+                        Lock lock = _memberLocks[i].writeLock();
+                        lock.lock();
+                        try {
+                            for (int j = 0; j < stepSize; j++) trainMember(i, _step[j]);
+                        } finally {
+                            lock.unlock();
+                        }
+                    });
+                    _version += stepSize;
+                } catch (RuntimeException | Error e) {
+                    _failure = e;
+                } finally {
+                    _trainCpuTime.add(threadCpuTime() - start);
+                    Arrays.fill(_step, 0, stepSize, null);
+                    // also lets a submit() waiting for the lag go on to find the failure
+                    _lag.release(stepSize);
+                }
+                if (_failure != null) return;
+            }
+        }
     }
 
 
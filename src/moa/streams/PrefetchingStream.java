@@ -0,0 +1,202 @@
+/*
+ *    PrefetchingStream.java
+ *
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package moa.streams;
+
+import com.yahoo.labs.samoa.instances.InstancesHeader;
+import moa.AbstractMOAObject;
+import moa.core.Example;
+import moa.core.TimingUtils;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads a stream ahead on its own thread into a bounded buffer, so that generating or parsing the next
+ * instances overlaps with learning on the current one. The instances come out in the order of the stream.
+ * It records how long the reader of this stream waited for the stream, and how long the stream waited for
+ * room in the buffer, that is for the reader.
+ *
+ * <p>The wrapped stream is only used by the prefetch thread once it has started, and must return a new
+ * instance every time, which the streams and generators of MOA do. Call close() when done reading; the
+ * prefetch thread otherwise stays blocked on the full buffer of an endless stream.</p>
+ */
+public class PrefetchingStream<E extends Example> extends AbstractMOAObject implements ExampleStream<E> {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Put after the last instance read */
+    private static final Object END = new Object();
+
+    protected final ExampleStream<E> _stream;
+
+    protected final InstancesHeader _header;
+
+    protected final long _maxInstances;
+
+    protected final transient ArrayBlockingQueue<Object> _buffer;
+
+    protected transient Thread _prefetcher;
+
+    /** Next instance, taken from the buffer by hasMoreInstances() */
+    protected transient E _next;
+
+    protected transient boolean _ended;
+
+    protected transient volatile Throwable _failure;
+
+    protected transient volatile long _estimatedRemaining;
+
+    /** Nanoseconds the reader waited for the stream */
+    protected transient long _readerWaitNanos;
+
+    /** Nanoseconds the prefetch thread waited for room in the buffer */
+    protected transient volatile long _streamWaitNanos;
+
+    /**
+     * Starts reading stream ahead.
+     *
+     * @param stream the stream to read, not to be used by anything else from now on
+     * @param bufferSize the number of instances read ahead at most
+     * @param maxInstances the number of instances to read at most (-1 = no limit)
+     */
+    public PrefetchingStream(ExampleStream<E> stream, int bufferSize, long maxInstances) {
+        _stream = stream;
+        _header = stream.getHeader();
+        _maxInstances = maxInstances;
+        _buffer = new ArrayBlockingQueue<>(Math.max(1, bufferSize));
+        _estimatedRemaining = stream.estimatedRemainingInstances();
+        _prefetcher = new Thread(this::prefetch, "PrefetchingStream");
+        _prefetcher.setDaemon(true);
+        _prefetcher.start();
+    }
+
+    protected void prefetch() {
+        long read = 0;
+        try {
+            while ((_maxInstances < 0 || read < _maxInstances) && _stream.hasMoreInstances()) {
+                Example inst = _stream.nextInstance();
+                read++;
+                _estimatedRemaining = _stream.estimatedRemainingInstances();
+                if (!_buffer.offer(inst)) {
+                    long start = System.nanoTime();
+                    _buffer.put(inst);
+                    _streamWaitNanos += System.nanoTime() - start;
+                }
+            }
+        } catch (InterruptedException e) {
+            return;
+        } catch (Throwable t) {
+            _failure = t;
+        }
+        try {
+            _buffer.put(END);
+        } catch (InterruptedException e) {
+            // closed
+        }
+    }
+
+    @Override
+    public InstancesHeader getHeader() {
+        return _header;
+    }
+
+    @Override
+    public long estimatedRemainingInstances() {
+        long remaining = _estimatedRemaining;
+        return remaining < 0 ? remaining : remaining + _buffer.size() + (_next != null ? 1 : 0);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public boolean hasMoreInstances() {
+        if (_next != null) return true;
+        if (_ended) return false;
+        Object inst = _buffer.poll();
+        if (inst == null) {
+            long start = System.nanoTime();
+            try {
+                while ((inst = _buffer.poll(100, TimeUnit.MILLISECONDS)) == null) {
+                    if (!_prefetcher.isAlive() && _buffer.isEmpty()) {
+                        throw new IllegalStateException("Prefetching stream was closed");
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while waiting for the stream", e);
+            } finally {
+                _readerWaitNanos += System.nanoTime() - start;
+            }
+        }
+        if (inst == END) {
+            _ended = true;
+            if (_failure != null) {
+                throw new RuntimeException("Reading the stream failed", _failure);
+            }
+            return false;
+        }
+        _next = (E) inst;
+        return true;
+    }
+
+    @Override
+    public E nextInstance() {
+        if (!hasMoreInstances()) return null;
+        E inst = _next;
+        _next = null;
+        return inst;
+    }
+
+    /** Seconds the reader of this stream spent waiting for instances. */
+    public double getReaderWaitSeconds() {
+        return TimingUtils.nanoTimeToSeconds(_readerWaitNanos);
+    }
+
+    /** Seconds the prefetch thread spent waiting for the reader to make room in the buffer. */
+    public double getStreamWaitSeconds() {
+        return TimingUtils.nanoTimeToSeconds(_streamWaitNanos);
+    }
+
+    /** Stops the prefetch thread and drops the instances read ahead. */
+    public void close() {
+        _prefetcher.interrupt();
+        try {
+            _prefetcher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        _buffer.clear();
+        _next = null;
+        _ended = true;
+    }
+
+    @Override
+    public boolean isRestartable() {
+        return false;
+    }
+
+    @Override
+    public void restart() {
+        throw new UnsupportedOperationException("A prefetching stream can not be restarted");
+    }
+
+    @Override
+    public void getDescription(StringBuilder sb, int indent) {
+        sb.append("prefetching ");
+        _stream.getDescription(sb, indent);
+    }
+}
@@ -0,0 +1,266 @@
+/*
+ *    AsyncOutputWriter.java
+ *
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package moa.tasks;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Writes the output files of the evaluation tasks on a background thread. Predictions are handed over as
+ * numbers in chunks, and are only formatted as lines of "predicted,true class" on the writer thread, which
+ * writes them through a large buffer. The file is flushed when asked to, at the sampling points of the
+ * tasks, and when closed. Lines and predictions are written in the order they are given. A writer opened
+ * with binaryPredictionLog() writes the predictions as the fixed-width records of a PredictionLog instead.
+ *
+ * <p>Not thread safe: one thread gives the output, the writer thread writes it. Writing errors are thrown
+ * by the next call after they happen, and by close().</p>
+ */
+public class AsyncOutputWriter implements Closeable {
+
+    /** Predictions handed to the writer thread at a time */
+    protected static final int CHUNK_SIZE = 8192;
+
+    /** Chunks and lines queued before the caller waits for the writer thread */
+    protected static final int QUEUED_ITEMS = 64;
+
+    protected static final int BUFFER_SIZE = 1 << 20;
+
+    /** Class written for a missing true class */
+    public static final int MISSING_CLASS = -1;
+
+    private static final Object FLUSH = new Object();
+
+    private static final Object CLOSE = new Object();
+
+    /** Predicted and true class, and top-class confidence, of CHUNK_SIZE predictions */
+    private static final class Chunk {
+        final int[] values = new int[2 * CHUNK_SIZE];
+        final float[] confidences = new float[CHUNK_SIZE];
+        int count;
+    }
+
+    protected final File _file;
+
+    private final ArrayBlockingQueue<Object> _queue = new ArrayBlockingQueue<>(QUEUED_ITEMS);
+
+    /** Emptied chunks, reused by the caller */
+    private final ArrayBlockingQueue<Chunk> _free = new ArrayBlockingQueue<>(QUEUED_ITEMS + 1);
+
+    private final Thread _writer;
+
+    /** Whether predictions are written as PredictionLog records, and with their confidence */
+    private final boolean _binary;
+
+    private final boolean _confidence;
+
+    private Chunk _chunk = new Chunk();
+
+    private volatile IOException _failure;
+
+    private boolean _closed;
+
+    /**
+     * Opens file and starts the writer thread.
+     *
+     * @param file the file to write
+     * @param append whether to append to the file if it exists
+     */
+    public AsyncOutputWriter(File file, boolean append) throws IOException {
+        this(file, append, false, false, 0);
+    }
+
+    /**
+     * Opens a binary prediction log, appending to file if it already holds a log of the same layout.
+     *
+     * @param file the file to write
+     * @param confidence whether to record the top-class confidence of every prediction
+     * @param numClasses the number of classes of the stream
+     */
+    public static AsyncOutputWriter binaryPredictionLog(File file, boolean confidence, int numClasses) throws IOException {
+        boolean append = file.exists() && file.length() > 0;
+        if (append) {
+            PredictionLog.checkAppendable(file, confidence, numClasses);
+        }
+        return new AsyncOutputWriter(file, append, true, confidence, numClasses);
+    }
+
+    protected AsyncOutputWriter(File file, boolean append, boolean binary, boolean confidence, int numClasses)
+            throws IOException {
+        _file = file;
+        _binary = binary;
+        _confidence = confidence;
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(file, append), BUFFER_SIZE);
+        if (binary && !append) {
+            PredictionLog.writeHeader(new DataOutputStream(out), confidence, numClasses);
+        }
+        _writer = new Thread(() -> write(out), "AsyncOutputWriter-" + file.getName());
+        _writer.setDaemon(true);
+        _writer.start();
+    }
+
+    /** Writes the prediction of one instance; trueClass is MISSING_CLASS if the class is missing. */
+    public void prediction(int predicted, int trueClass) {
+        prediction(predicted, trueClass, 0.0f);
+    }
+
+    /** Writes the prediction of one instance with its confidence, which only a binary log with confidences keeps. */
+    public void prediction(int predicted, int trueClass, float confidence) {
+        Chunk chunk = _chunk;
+        chunk.values[2 * chunk.count] = predicted;
+        chunk.values[2 * chunk.count + 1] = trueClass;
+        chunk.confidences[chunk.count] = confidence;
+        if (++chunk.count == CHUNK_SIZE) handOver();
+    }
+
+    /** Whether predictions are written as the records of a binary PredictionLog. */
+    public boolean isBinary() {
+        return _binary;
+    }
+
+    /** Writes line and a line separator. */
+    public void println(String line) {
+        handOver();
+        enqueue(line);
+    }
+
+    /** Has everything given so far written through to the file, without waiting for it. */
+    public void flush() {
+        handOver();
+        enqueue(FLUSH);
+    }
+
+    /** Writes everything given so far through to the file, waits until it is written and returns the file length. */
+    public long syncedLength() {
+        handOver();
+        CountDownLatch written = new CountDownLatch(1);
+        enqueue(written);
+        try {
+            written.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while writing output file: " + _file, e);
+        }
+        if (_failure != null) throw new RuntimeException("Unable to write output file: " + _file, _failure);
+        return _file.length();
+    }
+
+    /** Writes everything given so far, closes the file and stops the writer thread. */
+    @Override
+    public void close() throws IOException {
+        if (_closed) return;
+        handOver();
+        enqueue(CLOSE);
+        _closed = true;
+        try {
+            _writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (_failure != null) throw _failure;
+    }
+
+    private void handOver() {
+        if (_chunk.count == 0) return;
+        enqueue(_chunk);
+        Chunk chunk = _free.poll();
+        _chunk = chunk != null ? chunk : new Chunk();
+    }
+
+    private void enqueue(Object item) {
+        if (_closed) throw new IllegalStateException("Output file is closed: " + _file);
+        if (_failure != null) throw new RuntimeException("Unable to write output file: " + _file, _failure);
+        try {
+            _queue.put(item);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while writing output file: " + _file, e);
+        }
+    }
+
+    private void write(OutputStream out) {
+        byte[] lineSeparator = System.lineSeparator().getBytes(StandardCharsets.UTF_8);
+        ByteBuffer records = _binary ? ByteBuffer.allocate(CHUNK_SIZE * PredictionLog.recordSize(_confidence)) : null;
+        StringBuilder lines = _binary ? null : new StringBuilder();
+        try {
+            while (true) {
+                Object item = _queue.take();
+                if (item == CLOSE) break;
+                if (item instanceof CountDownLatch) {
+                    try {
+                        if (_failure == null) out.flush();
+                    } catch (IOException e) {
+                        _failure = e;
+                    }
+                    ((CountDownLatch) item).countDown();
+                    continue;
+                }
+                if (_failure != null) continue;
+                try {
+                    if (item == FLUSH) {
+                        out.flush();
+                    } else if (item instanceof Chunk) {
+                        Chunk chunk = (Chunk) item;
+                        if (_binary) {
+                            records.clear();
+                            for (int i = 0; i < chunk.count; i++) {
+                                records.putInt(chunk.values[2 * i]).putInt(chunk.values[2 * i + 1]);
+                                if (_confidence) records.putFloat(chunk.confidences[i]);
+                            }
+                            out.write(records.array(), 0, records.position());
+                        } else {
+                            lines.setLength(0);
+                            for (int i = 0; i < 2 * chunk.count; i += 2) {
+                                lines.append(chunk.values[i]).append(',');
+                                if (chunk.values[i + 1] == MISSING_CLASS) {
+                                    lines.append(" ? ");
+                                } else {
+                                    lines.append(chunk.values[i + 1]);
+                                }
+                                lines.append(System.lineSeparator());
+                            }
+                            out.write(lines.toString().getBytes(StandardCharsets.UTF_8));
+                        }
+                        chunk.count = 0;
+                        _free.offer(chunk);
+                    } else {
+                        out.write(((String) item).getBytes(StandardCharsets.UTF_8));
+                        out.write(lineSeparator);
+                    }
+                } catch (IOException e) {
+                    _failure = e;
+                }
+            }
+        } catch (InterruptedException e) {
+            // abandoned, the file is closed below
+        }
+        try {
+            out.close();
+        } catch (IOException e) {
+            if (_failure == null) _failure = e;
+        }
+    }
+}
@@ -0,0 +1,272 @@
+/*
+ *    Checkpoint.java
+ *
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package moa.tasks;
+
+import moa.classifiers.AbstractClassifierParallel;
+import moa.classifiers.Classifier;
+import moa.evaluation.LearningPerformanceEvaluator;
+import moa.evaluation.preview.LearningCurve;
+import moa.learners.Learner;
+import moa.streams.ExampleStream;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.stream.IntStream;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Snapshot of a prequential evaluation, written by the evaluation tasks every checkpointFrequency instances so a
+ * run can resume from it instead of training again. It holds the learner, the evaluator, the learning curve so
+ * far, the number of instances processed, the lengths of the output files and, if it could be serialised, the
+ * stream itself. The output files are cut back to those lengths on resuming, so what was written after the
+ * checkpoint is not written twice.
+ *
+ * <p>The members of a parallel ensemble, its checkpointMembers(), are serialised and compressed on their own, in
+ * parallel on the common pool, and the rest of the checkpoint refers to them by index. The file is</p>
+ *
+ * <pre>
+ * 8 bytes "MOACKPT" 0, int version, int number of members,
+ * for every member and then the rest: int length, deflated serialisation
+ * </pre>
+ *
+ * <p>A checkpoint is written to a temporary file first and then moved over the previous one, so a run stopped
+ * while writing still has the last complete checkpoint.</p>
+ */
+public class Checkpoint implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    public static final byte[] MAGIC = {'M', 'O', 'A', 'C', 'K', 'P', 'T', 0};
+
+    public static final int VERSION = 2;
+
+    public Learner learner;
+
+    public LearningPerformanceEvaluator evaluator;
+
+    public LearningCurve learningCurve;
+
+    public long instancesProcessed;
+
+    public double ramHours;
+
+    /** Lengths of the dump file and the output prediction file at the checkpoint, or -1 if not written */
+    public long dumpFileLength;
+
+    public long predictionFileLength;
+
+    /** Serialised stream at the checkpoint, or null if it could not be serialised and is to be skipped ahead */
+    public byte[] stream;
+
+    public Checkpoint(Learner learner, LearningPerformanceEvaluator evaluator, LearningCurve learningCurve,
+                      long instancesProcessed, double ramHours, long dumpFileLength, long predictionFileLength,
+                      ExampleStream stream) {
+        this.learner = learner;
+        this.evaluator = evaluator;
+        this.learningCurve = learningCurve;
+        this.instancesProcessed = instancesProcessed;
+        this.ramHours = ramHours;
+        this.dumpFileLength = dumpFileLength;
+        this.predictionFileLength = predictionFileLength;
+        this.stream = stream == null ? null : serializeOrNull(stream);
+    }
+
+    /** Stream positioned after the instances processed: the serialised one, or fresh skipped ahead to it. */
+    public ExampleStream restoreStream(ExampleStream fresh) throws IOException {
+        if (this.stream != null) {
+            try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(this.stream))) {
+                return (ExampleStream) in.readObject();
+            } catch (ClassNotFoundException e) {
+                throw new IOException("Unable to restore the stream", e);
+            }
+        }
+        for (long i = 0; i < this.instancesProcessed && fresh.hasMoreInstances(); i++) {
+            fresh.nextInstance();
+        }
+        return fresh;
+    }
+
+    /** Refers to member index of the checkpoint in place of the member itself. */
+    private static final class MemberRef implements Serializable {
+        private static final long serialVersionUID = 1L;
+        final int index;
+
+        MemberRef(int index) {
+            this.index = index;
+        }
+    }
+
+    /** Writes checkpoint to file, replacing the previous checkpoint only once it is complete. */
+    public static void write(File file, Checkpoint checkpoint) throws IOException {
+        Classifier[] members = checkpoint.learner instanceof AbstractClassifierParallel
+                ? ((AbstractClassifierParallel) checkpoint.learner).checkpointMembers() : new Classifier[0];
+        byte[][] memberBytes = new byte[members.length][];
+        try {
+            IntStream.range(0, members.length).parallel().forEach(i -> {
+                try {
+                    memberBytes[i] = deflate(members[i], null);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+        } catch (RuntimeException e) {
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw e;
+        }
+        Map<Object, Integer> memberIndex = new IdentityHashMap<>();
+        for (int i = 0; i < members.length; i++) memberIndex.put(members[i], i);
+        byte[] rest = deflate(checkpoint, memberIndex);
+
+        File temporary = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)))) {
+            out.write(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(members.length);
+            for (byte[] bytes : memberBytes) {
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+            out.writeInt(rest.length);
+            out.write(rest);
+        }
+        try {
+            Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /** Reads a checkpoint, restoring the members in parallel. */
+    public static Checkpoint read(File file) throws IOException {
+        byte[][] memberBytes;
+        byte[] rest;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IOException("Not a checkpoint: " + file);
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported checkpoint version " + version + ": " + file);
+            }
+            memberBytes = new byte[in.readInt()][];
+            for (int i = 0; i < memberBytes.length; i++) {
+                memberBytes[i] = new byte[in.readInt()];
+                in.readFully(memberBytes[i]);
+            }
+            rest = new byte[in.readInt()];
+            in.readFully(rest);
+        }
+        Object[] members = new Object[memberBytes.length];
+        try {
+            IntStream.range(0, members.length).parallel().forEach(i -> {
+                try {
+                    members[i] = inflate(memberBytes[i], null);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+        } catch (RuntimeException e) {
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw e;
+        }
+        return (Checkpoint) inflate(rest, members);
+    }
+
+    /** Serialises object, with the objects of memberIndex replaced by references, and deflates it. */
+    private static byte[] deflate(Object object, Map<Object, Integer> memberIndex) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new MemberReplacingOutputStream(new DeflaterOutputStream(bytes), memberIndex)) {
+            out.writeObject(object);
+        }
+        return bytes.toByteArray();
+    }
+
+    /** Inflates and deserialises bytes, resolving references to members. */
+    private static Object inflate(byte[] bytes, Object[] members) throws IOException {
+        try (ObjectInputStream in = new MemberResolvingInputStream(
+                new InflaterInputStream(new ByteArrayInputStream(bytes)), members)) {
+            return in.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Unable to restore checkpoint", e);
+        }
+    }
+
+    private static byte[] serializeOrNull(Object object) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(object);
+        } catch (IOException e) {
+            return null;
+        }
+        return bytes.toByteArray();
+    }
+
+    private static final class MemberReplacingOutputStream extends ObjectOutputStream {
+        private final Map<Object, Integer> _memberIndex;
+
+        MemberReplacingOutputStream(OutputStream out, Map<Object, Integer> memberIndex) throws IOException {
+            super(out);
+            _memberIndex = memberIndex;
+            if (memberIndex != null) enableReplaceObject(true);
+        }
+
+        @Override
+        protected Object replaceObject(Object obj) {
+            Integer index = _memberIndex.get(obj);
+            return index == null ? obj : new MemberRef(index);
+        }
+    }
+
+    private static final class MemberResolvingInputStream extends ObjectInputStream {
+        private final Object[] _members;
+
+        MemberResolvingInputStream(InputStream in, Object[] members) throws IOException {
+            super(in);
+            _members = members;
+            if (members != null) enableResolveObject(true);
+        }
+
+        @Override
+        protected Object resolveObject(Object obj) {
+            return obj instanceof MemberRef ? _members[((MemberRef) obj).index] : obj;
+        }
+    }
+}
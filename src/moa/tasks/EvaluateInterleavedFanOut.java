@@ -0,0 +1,388 @@
+/*
+ *    EvaluateInterleavedFanOut.java
+ *
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package moa.tasks;
+
+
+import com.github.javacliparser.FileOption;
+import com.github.javacliparser.FlagOption;
+import com.github.javacliparser.IntOption;
+import com.github.javacliparser.ListOption;
+import com.github.javacliparser.Option;
+import com.github.javacliparser.StringOption;
+import moa.classifiers.MultiClassClassifier;
+import moa.classifiers.Multithreading;
+import moa.core.Example;
+import moa.core.InstanceExample;
+import moa.core.Measurement;
+import moa.core.ObjectRepository;
+import moa.core.TimingUtils;
+import moa.evaluation.LearningEvaluation;
+import moa.evaluation.LearningPerformanceEvaluator;
+import moa.evaluation.preview.LearningCurve;
+import moa.learners.Learner;
+import moa.options.ClassOption;
+import moa.streams.ExampleStream;
+
+import com.yahoo.labs.samoa.instances.Instance;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Task for evaluating several learners, each with several random seeds, by testing then training on one pass
+ * over a stream. Every learner/seed configuration is evaluated as EvaluateInterleavedTestThenTrain would, but
+ * the stream is read once and its instances are handed in blocks to worker threads that own the configurations.
+ * The rows of every configuration, prefixed with its learner, stream and seed, are written to one csv file.
+ *
+ * <p>Configurations share the instances, so learners must not change the instances they are given, which MOA
+ * learners do not; copyInstances gives every configuration its own copies otherwise.</p>
+ */
+public class EvaluateInterleavedFanOut extends ClassificationMainTask {
+
+    @Override
+    public String getPurposeString() {
+        return "Evaluates several learners with several seeds by testing then training on one pass over a stream.";
+    }
+
+    private static final long serialVersionUID = 1L;
+
+    /** Instances handed to the workers at a time */
+    protected static final int BLOCK_SIZE = 256;
+
+    /** Blocks queued per worker before reading the stream waits */
+    protected static final int QUEUED_BLOCKS = 8;
+
+    public ListOption learnersOption = new ListOption("learners", 'l',
+            "Learners to evaluate.", new ClassOption("learner", ' ', "", MultiClassClassifier.class,
+            "bayes.NaiveBayes"), new Option[]{
+            new ClassOption("", ' ', "", MultiClassClassifier.class, "bayes.NaiveBayes"),
+            new ClassOption("", ' ', "", MultiClassClassifier.class, "trees.HoeffdingTree")}, ',');
+
+    public ClassOption streamOption = new ClassOption("stream", 's',
+            "Stream to learn from.", ExampleStream.class,
+            "generators.RandomTreeGenerator");
+
+    public StringOption randomSeedsOption = new StringOption("randomSeeds", 'r',
+            "Seeds every learner is evaluated with, as a comma separated list of seeds and ranges such as 1-30.", "1");
+
+    public ClassOption evaluatorOption = new ClassOption("evaluator", 'e',
+            "Classification performance evaluation method.",
+            LearningPerformanceEvaluator.class,
+            "BasicClassificationPerformanceEvaluator");
+
+    public IntOption instanceLimitOption = new IntOption("instanceLimit", 'i',
+            "Maximum number of instances to test/train on  (-1 = no limit).",
+            100000000, -1, Integer.MAX_VALUE);
+
+    public IntOption sampleFrequencyOption = new IntOption("sampleFrequency",
+            'f',
+            "How many instances between samples of the learning performance.",
+            100000, 1, Integer.MAX_VALUE);
+
+    public IntOption threadsOption = new IntOption("threads", 'c',
+            "Worker threads the configurations are spread over (0 = one per processor).",
+            0, 0, Integer.MAX_VALUE);
+
+    public FlagOption copyInstancesOption = new FlagOption("copyInstances", 'C',
+            "Give every configuration its own copy of every instance, for learners that change their instances.");
+
+    public FileOption dumpFileOption = new FileOption("dumpFile", 'd',
+            "File to append the combined csv results to.", null, "csv", true);
+
+    @Override
+    public Class<?> getTaskResultType() {
+        return LearningCurve.class;
+    }
+
+    /** One learner with one seed, evaluated on every instance by the worker that owns it. */
+    protected class Configuration {
+        final String learnerString;
+        final int seed;
+        final Learner learner;
+        final LearningPerformanceEvaluator evaluator;
+        final boolean multithreading;
+        final List<LearningEvaluation> evaluations = new ArrayList<>();
+        long instancesProcessed;
+        long lastSample;
+        /** CPU time of the worker thread spent on this configuration */
+        long cpuTime;
+
+        Configuration(String learnerString, int seed, Learner learner, LearningPerformanceEvaluator evaluator) {
+            this.learnerString = learnerString;
+            this.seed = seed;
+            this.learner = learner;
+            this.evaluator = evaluator;
+            this.multithreading = learner instanceof Multithreading;
+        }
+
+        void process(Example[] block, int count) {
+            long start = TimingUtils.getNanoCPUTimeOfCurrentThread();
+            boolean copy = copyInstancesOption.isSet();
+            int sampleFrequency = sampleFrequencyOption.getValue();
+            for (int j = 0; j < count; j++) {
+                Example example = copy ? new InstanceExample(((Instance) block[j].getData()).copy()) : block[j];
+                double[] prediction = this.learner.getVotesForInstance(example);
+                this.evaluator.addResult(example, prediction);
+                this.learner.trainOnInstance(example);
+                this.instancesProcessed++;
+                if (this.instancesProcessed % sampleFrequency == 0) {
+                    this.cpuTime += TimingUtils.getNanoCPUTimeOfCurrentThread() - start;
+                    sample();
+                    start = TimingUtils.getNanoCPUTimeOfCurrentThread();
+                }
+            }
+            this.cpuTime += TimingUtils.getNanoCPUTimeOfCurrentThread() - start;
+        }
+
+        void sample() {
+            this.lastSample = this.instancesProcessed;
+            List<Measurement> measurements = new ArrayList<>();
+            measurements.add(new Measurement("learning evaluation instances", this.instancesProcessed));
+            measurements.add(new Measurement("configuration", index(this)));
+            measurements.add(new Measurement("random seed", this.seed));
+            measurements.add(new Measurement("evaluation time (cpu seconds)", TimingUtils.nanoTimeToSeconds(this.cpuTime)));
+            if (this.multithreading) {
+                Multithreading learner = (Multithreading) this.learner;
+                measurements.add(new Measurement("training time (cpu seconds)",
+                        TimingUtils.nanoTimeToSeconds(learner.getTrainCpuTime())));
+                measurements.add(new Measurement("prediction time (cpu seconds)",
+                        TimingUtils.nanoTimeToSeconds(learner.getPredictCpuTime())));
+            }
+            this.evaluations.add(new LearningEvaluation(
+                    measurements.toArray(new Measurement[measurements.size()]),
+                    this.evaluator, this.learner));
+        }
+
+        void finish() {
+            if (this.instancesProcessed > this.lastSample) sample();
+            if (this.multithreading) ((Multithreading) this.learner).trainingHasEnded();
+        }
+    }
+
+    protected transient List<Configuration> configurations;
+
+    private int index(Configuration configuration) {
+        return this.configurations.indexOf(configuration);
+    }
+
+    /**
+     * A thread owning some of the configurations. It evaluates them on the blocks of its queue, one
+     * configuration after the other over a whole block, until it takes an empty block.
+     */
+    protected class Worker extends Thread {
+        final List<Configuration> owned = new ArrayList<>();
+        final BlockingQueue<Example[]> queue = new ArrayBlockingQueue<>(QUEUED_BLOCKS);
+        volatile Throwable failure;
+
+        Worker(int id) {
+            super("EvaluateInterleavedFanOut-" + id);
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    Example[] block = this.queue.take();
+                    if (block.length == 0) break;
+                    int count = block.length;
+                    // the last block of the stream is padded with nulls
+                    while (count > 0 && block[count - 1] == null) count--;
+                    for (Configuration configuration : this.owned) configuration.process(block, count);
+                }
+                for (Configuration configuration : this.owned) configuration.finish();
+            } catch (Throwable t) {
+                this.failure = t;
+            }
+        }
+
+        /** Queues block, waiting while the worker is QUEUED_BLOCKS behind; false once the worker has failed. */
+        boolean offer(Example[] block) throws InterruptedException {
+            if (this.failure != null) return false;
+            while (!this.queue.offer(block, 100, TimeUnit.MILLISECONDS)) {
+                if (this.failure != null || !isAlive()) return false;
+            }
+            return true;
+        }
+    }
+
+    @Override
+    protected Object doMainTask(TaskMonitor monitor, ObjectRepository repository) {
+        ExampleStream stream = (ExampleStream) getPreparedClassOption(this.streamOption);
+        LearningPerformanceEvaluator evaluatorPrototype = (LearningPerformanceEvaluator) getPreparedClassOption(this.evaluatorOption);
+        String streamString = this.streamOption.getValueAsCLIString();
+        int[] seeds = parseSeeds(this.randomSeedsOption.getValue());
+
+        this.configurations = new ArrayList<>();
+        Option[] learnerOptions = this.learnersOption.getList();
+        for (Option option : learnerOptions) {
+            ClassOption learnerOption = (ClassOption) option;
+            monitor.setCurrentActivity("Materializing learner " + learnerOption.getValueAsCLIString() + "...", -1.0);
+            Learner prototype = (Learner) learnerOption.materializeObject(monitor, repository);
+            if (monitor.taskShouldAbort()) {
+                return null;
+            }
+            for (int seed : seeds) {
+                Learner learner = (Learner) prototype.copy();
+                if (learner.isRandomizable()) {
+                    learner.setRandomSeed(seed);
+                }
+                learner.setModelContext(stream.getHeader());
+                learner.prepareForUse();
+                learner.resetLearning();
+                if (learner instanceof Multithreading) {
+                    try {
+                        ((Multithreading) learner).init();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new RuntimeException("Initialising " + learnerOption.getValueAsCLIString()
+                                + " with seed " + seed + " was interrupted", e);
+                    } catch (ExecutionException e) {
+                        throw new RuntimeException("Initialising " + learnerOption.getValueAsCLIString()
+                                + " with seed " + seed + " failed", e.getCause());
+                    }
+                }
+                LearningPerformanceEvaluator evaluator = (LearningPerformanceEvaluator) evaluatorPrototype.copy();
+                evaluator.reset();
+                this.configurations.add(new Configuration(learnerOption.getValueAsCLIString(), seed, learner, evaluator));
+            }
+        }
+
+        int numWorkers = this.threadsOption.getValue() > 0 ? this.threadsOption.getValue()
+                : Runtime.getRuntime().availableProcessors();
+        numWorkers = Math.max(1, Math.min(numWorkers, this.configurations.size()));
+        Worker[] workers = new Worker[numWorkers];
+        for (int w = 0; w < numWorkers; w++) workers[w] = new Worker(w);
+        // round robin, so the seeds of one learner are spread over the workers
+        for (int c = 0; c < this.configurations.size(); c++) {
+            workers[c % numWorkers].owned.add(this.configurations.get(c));
+        }
+        for (Worker worker : workers) worker.start();
+
+        monitor.setCurrentActivity("Evaluating " + this.configurations.size() + " configurations...", -1.0);
+        int maxInstances = this.instanceLimitOption.getValue();
+        long instancesRead = 0;
+        boolean aborted = false;
+        try {
+            Example[] block = new Example[BLOCK_SIZE];
+            int count = 0;
+            while (stream.hasMoreInstances() && ((maxInstances < 0) || (instancesRead < maxInstances))) {
+                block[count++] = stream.nextInstance();
+                instancesRead++;
+                if (count == BLOCK_SIZE) {
+                    if (!dispatch(workers, block)) break;
+                    block = new Example[BLOCK_SIZE];
+                    count = 0;
+                }
+                if (instancesRead % INSTANCES_BETWEEN_MONITOR_UPDATES == 0) {
+                    if (monitor.taskShouldAbort()) {
+                        aborted = true;
+                        break;
+                    }
+                    monitor.setCurrentActivityFractionComplete(maxInstances > 0
+                            ? (double) instancesRead / maxInstances : -1.0);
+                }
+            }
+            if (count > 0 && !aborted) dispatch(workers, block);
+            dispatch(workers, new Example[0]);
+            for (Worker worker : workers) worker.join();
+        } catch (InterruptedException e) {
+            throw new RuntimeException("Interrupted while evaluating the configurations", e);
+        }
+        for (Worker worker : workers) {
+            if (worker.failure != null) {
+                throw new RuntimeException("Evaluation failed in " + worker.getName(), worker.failure);
+            }
+        }
+        if (aborted) {
+            return null;
+        }
+
+        // insertEntry puts an entry before those with the same ordering value, so configurations are inserted in
+        // reverse to come out in order at every sample point
+        LearningCurve learningCurve = new LearningCurve("learning evaluation instances");
+        for (int c = this.configurations.size() - 1; c >= 0; c--) {
+            for (LearningEvaluation evaluation : this.configurations.get(c).evaluations) {
+                learningCurve.insertEntry(evaluation);
+            }
+        }
+
+        File dumpFile = this.dumpFileOption.getFile();
+        if (dumpFile != null) {
+            try (PrintStream immediateResultStream = new PrintStream(new FileOutputStream(dumpFile, dumpFile.exists()), false)) {
+                immediateResultStream.print("learner,stream,randomSeed,");
+                immediateResultStream.println(learningCurve.headerToString());
+                for (int i = 0; i < learningCurve.numEntries(); i++) {
+                    // the configuration measurement is the second column of every entry
+                    Configuration configuration = this.configurations.get((int) learningCurve.getMeasurement(i, 1));
+                    immediateResultStream.print(configuration.learnerString + "," + streamString + ","
+                            + configuration.seed + ",");
+                    immediateResultStream.println(learningCurve.entryToString(i));
+                }
+            } catch (Exception ex) {
+                throw new RuntimeException("Unable to write result file: " + dumpFile, ex);
+            }
+        }
+        return learningCurve;
+    }
+
+    /**
+     * Hands block to every worker that has not failed, so the empty block that ends the run reaches all the
+     * workers still waiting for one; false if a worker has failed.
+     */
+    private static boolean dispatch(Worker[] workers, Example[] block) throws InterruptedException {
+        boolean delivered = true;
+        for (Worker worker : workers) {
+            if (!worker.offer(block)) delivered = false;
+        }
+        return delivered;
+    }
+
+    /** Seeds of a list such as "1,4,10-20". */
+    protected static int[] parseSeeds(String list) {
+        List<Integer> seeds = new ArrayList<>();
+        for (String token : list.split(",")) {
+            token = token.trim();
+            if (token.isEmpty()) continue;
+            int dash = token.indexOf('-', 1);
+            if (dash < 0) {
+                seeds.add(Integer.parseInt(token));
+            } else {
+                int from = Integer.parseInt(token.substring(0, dash).trim());
+                int to = Integer.parseInt(token.substring(dash + 1).trim());
+                if (to < from) {
+                    throw new IllegalArgumentException("Empty seed range: " + token);
+                }
+                for (int seed = from; seed <= to; seed++) seeds.add(seed);
+            }
+        }
+        if (seeds.isEmpty()) {
+            throw new IllegalArgumentException("No random seeds given");
+        }
+        int[] result = new int[seeds.size()];
+        for (int i = 0; i < result.length; i++) result[i] = seeds.get(i);
+        return result;
+    }
+}
@@ -20,9 +20,8 @@
 package moa.tasks;
 
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.PrintStream;
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.ExecutionException;
 
 import moa.capabilities.Capability;
@@ -39,8 +38,11 @@ import moa.evaluation.preview.LearningCurve;
 import moa.learners.Learner;
 import moa.options.ClassOption;
 import com.github.javacliparser.FileOption;
+import com.github.javacliparser.FlagOption;
 import com.github.javacliparser.IntOption;
+import com.github.javacliparser.MultiChoiceOption;
 import moa.streams.ExampleStream;
+import moa.streams.PrefetchingStream;
 import moa.streams.InstanceStream;
 
 /**
@@ -92,9 +94,34 @@ public class EvaluateInterleavedTestThenTrain extends ClassificationMainTask {
             "How many instances between memory bound checks.", 100000, 0,
             Integer.MAX_VALUE);
 
+    public IntOption prefetchSizeOption = new IntOption("prefetchSize", 'P',
+            "Instances read ahead from the stream on a separate thread (0 = read on the evaluation thread).",
+            0, 0, Integer.MAX_VALUE);
+
+    public FlagOption exactModelSizeOption = new FlagOption("exactModelSize", 'x',
+            "Measure the model size for RAM-Hours by walking the whole model at every sample, instead of using "
+                    + "the incremental estimate of multi-threaded learners.");
+
+    public FileOption checkpointFileOption = new FileOption("checkpointFile", 'k',
+            "File to write checkpoints of the learner and evaluator to, and to resume from.", null, "ckpt", true);
+
+    public IntOption checkpointFrequencyOption = new IntOption("checkpointFrequency", 'K',
+            "How many instances between checkpoints (0 = no checkpoints).", 0, 0, Integer.MAX_VALUE);
+
+    public FlagOption resumeOption = new FlagOption("resume", 'u',
+            "Resume from the checkpoint file if it exists, instead of starting over.");
+
     public FileOption dumpFileOption = new FileOption("dumpFile", 'd',
             "File to append intermediate csv reslts to.", null, "csv", true);
 
+    public FileOption outputPredictionFileOption = new FileOption("outputPredictionFile", 'o',
+            "File to append output predictions to.", null, "pred", true);
+
+    public MultiChoiceOption outputPredictionFormatOption = new MultiChoiceOption("outputPredictionFormat", 'p',
+            "Format of the output prediction file.", new String[]{"Text", "Binary", "BinaryConfidence"},
+            new String[]{"Lines of predicted,true class", "Binary PredictionLog records",
+                    "Binary PredictionLog records with the top-class confidence"}, 0);
+
     @Override
     public Class<?> getTaskResultType() {
         return LearningCurve.class;
@@ -103,7 +130,6 @@ public class EvaluateInterleavedTestThenTrain extends ClassificationMainTask {
     @Override
     protected Object doMainTask(TaskMonitor monitor, ObjectRepository repository) {
         //System.out.println("Main Thread: "+ Thread.currentThread().getId() );
-        HashSet<Integer> threadIDSet = new HashSet<Integer>();
         String learnerString = this.learnerOption.getValueAsCLIString();
         String streamString = this.streamOption.getValueAsCLIString();
         //this.learnerOption.setValueViaCLIString(this.learnerOption.getValueAsCLIString() + " -r " +this.randomSeedOption);
@@ -114,6 +140,11 @@ public class EvaluateInterleavedTestThenTrain extends ClassificationMainTask {
             learner.setRandomSeed(this.randomSeedOption.getValue());
             learner.resetLearning();
         }
+        File checkpointFile = this.checkpointFileOption.getFile();
+        Checkpoint checkpoint = EvaluatePrequential.readCheckpoint(checkpointFile, this.resumeOption.isSet());
+        if (checkpoint != null) {
+            learner = checkpoint.learner;
+        }
 
 
         boolean isInitialised = false;
@@ -132,38 +163,55 @@ public class EvaluateInterleavedTestThenTrain extends ClassificationMainTask {
         ExampleStream stream = (InstanceStream) getPreparedClassOption(this.streamOption);
 
         LearningPerformanceEvaluator evaluator = (LearningPerformanceEvaluator) getPreparedClassOption(this.evaluatorOption);
-        learner.setModelContext(stream.getHeader());
+        if (checkpoint != null) {
+            evaluator = checkpoint.evaluator;
+            stream = EvaluatePrequential.restoreStream(checkpoint, stream);
+        }
+        PrefetchingStream prefetchingStream = null;
+        if (this.prefetchSizeOption.getValue() > 0) {
+            // the instance limit is left to the loop below, so hasMoreInstances() at the limit, and with it the
+            // last sample, is the same as without prefetching
+            prefetchingStream = new PrefetchingStream(stream, this.prefetchSizeOption.getValue(), -1);
+            stream = prefetchingStream;
+        }
+        if (checkpoint == null) {
+            learner.setModelContext(stream.getHeader());
+        }
         int maxInstances = this.instanceLimitOption.getValue();
-        long instancesProcessed = 0;
+        long instancesProcessed = checkpoint == null ? 0 : checkpoint.instancesProcessed;
         int maxSeconds = this.timeLimitOption.getValue();
         int secondsElapsed = 0;
         monitor.setCurrentActivity("Evaluating learner...", -1.0);
-        LearningCurve learningCurve = new LearningCurve(
+        LearningCurve learningCurve = checkpoint != null ? checkpoint.learningCurve : new LearningCurve(
                 "learning evaluation instances");
         File dumpFile = this.dumpFileOption.getFile();
-        PrintStream immediateResultStream = null;
+        File outputPredictionFile = this.outputPredictionFileOption.getFile();
+        if (checkpoint != null) {
+            EvaluatePrequential.truncateOutput(dumpFile, checkpoint.dumpFileLength);
+            EvaluatePrequential.truncateOutput(outputPredictionFile, checkpoint.predictionFileLength);
+        }
+        AsyncOutputWriter immediateResultStream = null;
         if (dumpFile != null) {
             try {
-                if (dumpFile.exists()) {
-                    immediateResultStream = new PrintStream(
-                            new FileOutputStream(dumpFile, true), true);
-                } else {
-                    immediateResultStream = new PrintStream(
-                            new FileOutputStream(dumpFile), true);
-                }
+                immediateResultStream = new AsyncOutputWriter(dumpFile, dumpFile.exists());
             } catch (Exception ex) {
                 throw new RuntimeException(
                         "Unable to open immediate result file: " + dumpFile, ex);
             }
         }
+        AsyncOutputWriter outputPredictionResultStream = null;
+        if (outputPredictionFile != null) {
+            outputPredictionResultStream = EvaluatePrequential.openPredictionFile(outputPredictionFile,
+                    this.outputPredictionFormatOption.getChosenIndex(), stream.getHeader().numClasses());
+        }
         double time = 0;
-        boolean firstDump = true;
+        boolean firstDump = checkpoint == null || dumpFile == null || dumpFile.length() == 0;
         float timeTaken = 0;
         // Clock Time Start
         long t1 = System.currentTimeMillis();
         long evaluateStartTime = TimingUtils.getNanoCPUTimeOfCurrentThread();
         long lastEvaluateStartTime = evaluateStartTime;
-        double RAMHours = 0.0;
+        double RAMHours = checkpoint == null ? 0.0 : checkpoint.ramHours;
         while (stream.hasMoreInstances()
                 && ((maxInstances < 0) || (instancesProcessed < maxInstances))
                 && ((maxSeconds < 0) || (secondsElapsed < maxSeconds))) {
@@ -172,11 +220,19 @@ public class EvaluateInterleavedTestThenTrain extends ClassificationMainTask {
             //int trueClass = (int) trainInst.classValue();
             //testInst.setClassMissing();
             double[] prediction = learner.getVotesForInstance(testInst);
+            if (outputPredictionResultStream != null) {
+                EvaluatePrequential.writePrediction(outputPredictionResultStream, testInst, prediction,
+                        this.outputPredictionFormatOption.getChosenIndex() == 2);
+            }
             //evaluator.addClassificationAttempt(trueClass, prediction, testInst
             //		.weight());
             evaluator.addResult(testInst, prediction);
             learner.trainOnInstance(trainInst);
             instancesProcessed++;
+            if (this.memCheckFrequencyOption.getValue() > 0 && learner instanceof Multithreading
+                    && instancesProcessed % this.memCheckFrequencyOption.getValue() == 0) {
+                ((Multithreading) learner).enforceMemoryBudget();
+            }
             if (instancesProcessed % this.sampleFrequencyOption.getValue() == 0
                     ||  stream.hasMoreInstances() == false) {
                 long evaluateTime = TimingUtils.getNanoCPUTimeOfCurrentThread();
@@ -185,50 +241,80 @@ public class EvaluateInterleavedTestThenTrain extends ClassificationMainTask {
                 //Clock Time End
                 timeTaken = (t2-t1)/1000F;
                 double timeIncrement = TimingUtils.nanoTimeToSeconds(evaluateTime - lastEvaluateStartTime);
-                double RAMHoursIncrement = learner.measureByteSize() / (1024.0 * 1024.0 * 1024.0); //GBs
+                double RAMHoursIncrement = EvaluatePrequential.modelByteSize(learner, this.exactModelSizeOption.isSet()) / (1024.0 * 1024.0 * 1024.0); //GBs
                 RAMHoursIncrement *= (timeIncrement / 3600.0); //Hours
                 RAMHours += RAMHoursIncrement;
                 lastEvaluateStartTime = evaluateTime;
 
+                double trainTime = 0.0;
+                double predictTime = 0.0;
                 if(isInitialised){
+                    // CPU time of the learner's own threads, summed over every worker
                     Multithreading tempLearner = ((Multithreading) learner);
-                    time = (double)tempLearner.getCpuTime().get()/(double)1000;
-
-
+                    trainTime = TimingUtils.nanoTimeToSeconds(tempLearner.getTrainCpuTime());
+                    predictTime = TimingUtils.nanoTimeToSeconds(tempLearner.getPredictCpuTime());
+                    time = trainTime + predictTime;
                 }else{
-                    time = evaluateTime;
+                    time = TimingUtils.nanoTimeToSeconds(evaluateTime - evaluateStartTime);
                 }
 
+                List<Measurement> measurements = new ArrayList<>();
+                measurements.add(new Measurement(
+                        "learning evaluation instances",
+                        instancesProcessed));
+                measurements.add(new Measurement(
+                        "CPU TIME (" + " seconds)",
+                        time));
+                measurements.add(new Measurement(
+                        "model cost (RAM-Hours)",
+                        RAMHours));
+                measurements.add(new Measurement(
+                        "Wall Time (Actual Time)",
+                        timeTaken));
+                if(isInitialised){
+                    measurements.add(new Measurement("training time (cpu seconds)", trainTime));
+                    measurements.add(new Measurement("prediction time (cpu seconds)", predictTime));
+                }
+                if (prefetchingStream != null) {
+                    measurements.add(new Measurement("learner waiting on stream (seconds)",
+                            prefetchingStream.getReaderWaitSeconds()));
+                    measurements.add(new Measurement("stream waiting on learner (seconds)",
+                            prefetchingStream.getStreamWaitSeconds()));
+                }
                 learningCurve.insertEntry(new LearningEvaluation(
-                        new Measurement[]{
-                                new Measurement(
-                                        "learning evaluation instances",
-                                        instancesProcessed),
-                                new Measurement(
-                                        "CPU TIME (" + " seconds)",
-                                        time),
-                                new Measurement(
-                                        "model cost (RAM-Hours)",
-                                        RAMHours),
-                                new Measurement(
-                                        "Wall Time (Actual Time)"
-                                        , timeTaken
-                                )
-                        },
+                        measurements.toArray(new Measurement[measurements.size()]),
                         evaluator, learner));
                 if (immediateResultStream != null) {
                     if (firstDump) {
-                        immediateResultStream.print("Learner,stream,randomSeed,");
-                        immediateResultStream.println(learningCurve.headerToString());
+                        immediateResultStream.println("Learner,stream,randomSeed," + learningCurve.headerToString());
                         firstDump = false;
                     }
-                    immediateResultStream.print(learnerString + "," + streamString + "," + this.randomSeedOption.getValueAsCLIString() + ",");
-                    immediateResultStream.println(learningCurve.entryToString(learningCurve.numEntries() - 1));
+                    immediateResultStream.println(learnerString + "," + streamString + "," + this.randomSeedOption.getValueAsCLIString() + ","
+                            + learningCurve.entryToString(learningCurve.numEntries() - 1));
                     immediateResultStream.flush();
                 }
+                if (outputPredictionResultStream != null) {
+                    outputPredictionResultStream.flush();
+                }
+            }
+            if (checkpointFile != null && this.checkpointFrequencyOption.getValue() > 0
+                    && instancesProcessed % this.checkpointFrequencyOption.getValue() == 0) {
+                EvaluatePrequential.writeCheckpoint(checkpointFile, new Checkpoint(learner, evaluator, learningCurve,
+                        instancesProcessed, RAMHours, EvaluatePrequential.outputLength(immediateResultStream),
+                        EvaluatePrequential.outputLength(outputPredictionResultStream),
+                        prefetchingStream == null ? stream : null));
             }
             if (instancesProcessed % INSTANCES_BETWEEN_MONITOR_UPDATES == 0) {
                 if (monitor.taskShouldAbort()) {
+                    // releases the learner's threads, which may be shared with other tasks
+                    if (learner instanceof Multithreading) {
+                        ((Multithreading) learner).trainingHasEnded();
+                    }
+                    if (prefetchingStream != null) {
+                        prefetchingStream.close();
+                    }
+                    EvaluatePrequential.closeOutput(immediateResultStream);
+                    EvaluatePrequential.closeOutput(outputPredictionResultStream);
                     return null;
                 }
                 long estimatedRemainingInstances = stream.estimatedRemainingInstances();
@@ -250,9 +336,11 @@ public class EvaluateInterleavedTestThenTrain extends ClassificationMainTask {
             }
         }
 
-        if (immediateResultStream != null) {
-            immediateResultStream.close();
+        if (prefetchingStream != null) {
+            prefetchingStream.close();
         }
+        EvaluatePrequential.closeOutput(immediateResultStream);
+        EvaluatePrequential.closeOutput(outputPredictionResultStream);
         if(isInitialised){
             ((Multithreading)learner).trainingHasEnded();
             //customPool.shutdown();
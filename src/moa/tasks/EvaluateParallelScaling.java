@@ -0,0 +1,277 @@
+/*
+ *    EvaluateParallelScaling.java
+ *
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package moa.tasks;
+
+import com.github.javacliparser.FileOption;
+import com.github.javacliparser.FloatOption;
+import com.github.javacliparser.IntOption;
+import com.github.javacliparser.StringOption;
+import com.yahoo.labs.samoa.instances.Instance;
+import moa.classifiers.Multithreading;
+import moa.core.Example;
+import moa.core.Measurement;
+import moa.core.ObjectRepository;
+import moa.core.TimingUtils;
+import moa.core.Utils;
+import moa.evaluation.LearningEvaluation;
+import moa.evaluation.LearningPerformanceEvaluator;
+import moa.evaluation.preview.LearningCurve;
+import moa.learners.Learner;
+import moa.options.ClassOption;
+import moa.streams.ExampleStream;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Task for measuring how a multi-threaded learner scales with its core count. The instances are read from the
+ * stream once, before any timing, and the same instances are then evaluated prequentially with every core count.
+ * Every core count gives one row with its throughput, speedup and parallel efficiency against the single-core
+ * run, and its accuracy. A row whose predictions differ from the single-core run is flagged as diverging.
+ * Before the timed runs every core count is run untimed on the first warmupInstances instances, so that the
+ * single-core run, which comes first, does not pay for compiling the code the later runs share.
+ */
+public class EvaluateParallelScaling extends ClassificationMainTask {
+
+    @Override
+    public String getPurposeString() {
+        return "Evaluates a multi-threaded learner prequentially on the same instances with several core counts.";
+    }
+
+    private static final long serialVersionUID = 1L;
+
+    public ClassOption learnerOption = new ClassOption("learner", 'l',
+            "Multi-threaded learner to evaluate.", Multithreading.class, "meta.OzaBagMC");
+
+    public ClassOption streamOption = new ClassOption("stream", 's',
+            "Stream to learn from.", ExampleStream.class,
+            "generators.RandomTreeGenerator");
+
+    public ClassOption evaluatorOption = new ClassOption("evaluator", 'e',
+            "Classification performance evaluation method.",
+            LearningPerformanceEvaluator.class,
+            "BasicClassificationPerformanceEvaluator");
+
+    public IntOption instanceLimitOption = new IntOption("instanceLimit", 'i',
+            "Number of instances read from the stream and replayed for every core count.",
+            100000, 1, Integer.MAX_VALUE);
+
+    public StringOption coreSizesOption = new StringOption("coreSizes", 'c',
+            "Comma separated core counts to run, as for the coreSize option of the learner. "
+                    + "A single-core run is added first if 1 is not listed.", "1,2,4");
+
+    public IntOption warmupInstancesOption = new IntOption("warmupInstances", 'w',
+            "Instances every core count is run on untimed before the timed runs (0 = no warmup).",
+            10000, 0, Integer.MAX_VALUE);
+
+    public FloatOption accuracyToleranceOption = new FloatOption("accuracyTolerance", 't',
+            "Accuracy difference in percent from the single-core run above which a core count is flagged as diverging.",
+            0.0, 0.0, 100.0);
+
+    public FileOption dumpFileOption = new FileOption("dumpFile", 'd',
+            "File to append the csv results to.", null, "csv", true);
+
+    @Override
+    public Class<?> getTaskResultType() {
+        return LearningCurve.class;
+    }
+
+    @Override
+    protected Object doMainTask(TaskMonitor monitor, ObjectRepository repository) {
+        @SuppressWarnings("unchecked")
+        Learner<Example<Instance>> prototype = (Learner<Example<Instance>>) getPreparedClassOption(this.learnerOption);
+        @SuppressWarnings("unchecked")
+        ExampleStream<Example<Instance>> stream = (ExampleStream<Example<Instance>>) getPreparedClassOption(this.streamOption);
+        @SuppressWarnings("unchecked")
+        LearningPerformanceEvaluator<Example<Instance>> evaluatorPrototype =
+                (LearningPerformanceEvaluator<Example<Instance>>) getPreparedClassOption(this.evaluatorOption);
+        int[] coreSizes = parseCoreSizes(this.coreSizesOption.getValue());
+
+        monitor.setCurrentActivity("Reading instances...", -1.0);
+        List<Example<Instance>> instances = new ArrayList<>();
+        while (stream.hasMoreInstances() && instances.size() < this.instanceLimitOption.getValue()) {
+            instances.add(stream.nextInstance());
+        }
+
+        // rows are kept in run order, which the curve sorts its entries by
+        LearningCurve learningCurve = new LearningCurve("run");
+        File dumpFile = this.dumpFileOption.getFile();
+        PrintStream immediateResultStream = null;
+        if (dumpFile != null) {
+            try {
+                immediateResultStream = new PrintStream(new FileOutputStream(dumpFile, dumpFile.exists()), true);
+            } catch (Exception ex) {
+                throw new RuntimeException(
+                        "Unable to open immediate result file: " + dumpFile, ex);
+            }
+        }
+
+        int warmup = Math.min(this.warmupInstancesOption.getValue(), instances.size());
+        if (warmup > 0) {
+            for (int coreSize : coreSizes) {
+                monitor.setCurrentActivity("Warming up with coreSize " + coreSize + "...", -1.0);
+                Learner<Example<Instance>> learner = newLearner(prototype, coreSize, stream);
+                for (int i = 0; i < warmup; i++) {
+                    Example<Instance> example = instances.get(i);
+                    learner.getVotesForInstance(example);
+                    learner.trainOnInstance(example);
+                }
+                ((Multithreading) learner).trainingHasEnded();
+                if (monitor.taskShouldAbort()) {
+                    return null;
+                }
+            }
+        }
+
+        int[] baselinePredictions = null;
+        double baselineThroughput = 0.0;
+        double baselineAccuracy = 0.0;
+        for (int run = 0; run < coreSizes.length; run++) {
+            int coreSize = coreSizes[run];
+            monitor.setCurrentActivity("Evaluating learner with coreSize " + coreSize + "...",
+                    (double) run / coreSizes.length);
+
+            Learner<Example<Instance>> learner = newLearner(prototype, coreSize, stream);
+            @SuppressWarnings("unchecked")
+            LearningPerformanceEvaluator<Example<Instance>> evaluator =
+                    (LearningPerformanceEvaluator<Example<Instance>>) evaluatorPrototype.copy();
+            evaluator.reset();
+
+            int[] predictions = new int[instances.size()];
+            double correctWeight = 0.0;
+            double totalWeight = 0.0;
+            long start = System.nanoTime();
+            for (int i = 0; i < instances.size(); i++) {
+                Example<Instance> example = instances.get(i);
+                Instance inst = example.getData();
+                double[] prediction = learner.getVotesForInstance(example);
+                evaluator.addResult(example, prediction);
+                learner.trainOnInstance(example);
+                predictions[i] = Utils.maxIndex(prediction);
+                if (predictions[i] == (int) inst.classValue()) correctWeight += inst.weight();
+                totalWeight += inst.weight();
+                if (i % INSTANCES_BETWEEN_MONITOR_UPDATES == 0 && monitor.taskShouldAbort()) {
+                    ((Multithreading) learner).trainingHasEnded();
+                    return null;
+                }
+            }
+            double wallSeconds = (System.nanoTime() - start) / 1.0e9;
+            ((Multithreading) learner).trainingHasEnded();
+
+            double throughput = instances.size() / wallSeconds;
+            double accuracy = totalWeight > 0.0 ? 100.0 * correctWeight / totalWeight : 0.0;
+            int mismatches = 0;
+            if (baselinePredictions == null) {
+                baselinePredictions = predictions;
+                baselineThroughput = throughput;
+                baselineAccuracy = accuracy;
+            } else {
+                for (int i = 0; i < predictions.length; i++) {
+                    if (predictions[i] != baselinePredictions[i]) mismatches++;
+                }
+            }
+            double speedup = throughput / baselineThroughput;
+            boolean diverges = Math.abs(accuracy - baselineAccuracy) > this.accuracyToleranceOption.getValue()
+                    || (this.accuracyToleranceOption.getValue() == 0.0 && mismatches > 0);
+
+            List<Measurement> measurements = new ArrayList<>();
+            measurements.add(new Measurement("run", run));
+            measurements.add(new Measurement("core size", coreSize));
+            measurements.add(new Measurement("instances", instances.size()));
+            measurements.add(new Measurement("wall time (seconds)", wallSeconds));
+            measurements.add(new Measurement("throughput (instances per second)", throughput));
+            measurements.add(new Measurement("speedup", speedup));
+            measurements.add(new Measurement("parallel efficiency", speedup / effectiveCores(coreSize)));
+            measurements.add(new Measurement("accuracy (percent)", accuracy));
+            measurements.add(new Measurement("predictions differing from single core", mismatches));
+            measurements.add(new Measurement("accuracy diverges", diverges ? 1 : 0));
+            measurements.add(new Measurement("training time (cpu seconds)",
+                    TimingUtils.nanoTimeToSeconds(((Multithreading) learner).getTrainCpuTime())));
+            measurements.add(new Measurement("prediction time (cpu seconds)",
+                    TimingUtils.nanoTimeToSeconds(((Multithreading) learner).getPredictCpuTime())));
+            learningCurve.insertEntry(new LearningEvaluation(
+                    measurements.toArray(new Measurement[measurements.size()]),
+                    evaluator, learner));
+
+            if (immediateResultStream != null) {
+                if (run == 0) {
+                    immediateResultStream.println(learningCurve.headerToString());
+                }
+                immediateResultStream.println(learningCurve.entryToString(learningCurve.numEntries() - 1));
+                immediateResultStream.flush();
+            }
+            if (monitor.resultPreviewRequested()) {
+                monitor.setLatestResultPreview(learningCurve.copy());
+            }
+        }
+        if (immediateResultStream != null) {
+            immediateResultStream.close();
+        }
+        ((Multithreading) prototype).trainingHasEnded();
+        return learningCurve;
+    }
+
+    /**
+     * A fresh copy of prototype running on coreSize cores; coreSize 1 runs on the calling thread alone. A learner
+     * that fails to initialise fails the task, as no run could be compared with it.
+     */
+    protected static <E extends Example<?>> Learner<E> newLearner(Learner<E> prototype, int coreSize,
+                                                                   ExampleStream<E> stream) {
+        @SuppressWarnings("unchecked")
+        Learner<E> learner = (Learner<E>) prototype.copy();
+        ((Multithreading) learner).setCoreSize(coreSize);
+        learner.setModelContext(stream.getHeader());
+        learner.resetLearning();
+        try {
+            ((Multithreading) learner).init();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Initialising the learner with coreSize " + coreSize + " was interrupted", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Initialising the learner with coreSize " + coreSize + " failed", e.getCause());
+        }
+        return learner;
+    }
+
+    /** The listed core counts, with a single-core baseline run first. */
+    protected static int[] parseCoreSizes(String list) {
+        List<Integer> sizes = new ArrayList<>();
+        sizes.add(1);
+        for (String token : list.split(",")) {
+            token = token.trim();
+            if (token.isEmpty()) continue;
+            int size = Integer.parseInt(token);
+            if (size < 0) {
+                throw new IllegalArgumentException("Core sizes must be 0 (common pool) or positive: " + size);
+            }
+            if (size != 1) sizes.add(size);
+        }
+        int[] result = new int[sizes.size()];
+        for (int i = 0; i < result.length; i++) result[i] = sizes.get(i);
+        return result;
+    }
+
+    /** Cores a coreSize runs on; 0 runs on the common pool, which together with the caller uses every core. */
+    protected static int effectiveCores(int coreSize) {
+        return coreSize == 0 ? Runtime.getRuntime().availableProcessors() : coreSize;
+    }
+}
@@ -21,8 +21,10 @@
 package moa.tasks;
 
 import com.github.javacliparser.FileOption;
+import com.github.javacliparser.FlagOption;
 import com.github.javacliparser.FloatOption;
 import com.github.javacliparser.IntOption;
+import com.github.javacliparser.MultiChoiceOption;
 import com.yahoo.labs.samoa.instances.Instance;
 import moa.capabilities.CapabilitiesHandler;
 import moa.capabilities.Capability;
@@ -35,10 +37,14 @@ import moa.evaluation.preview.LearningCurve;
 import moa.learners.Learner;
 import moa.options.ClassOption;
 import moa.streams.ExampleStream;
+import moa.streams.PrefetchingStream;
 
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.PrintStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.ExecutionException;
 
 /**
@@ -87,12 +93,34 @@ public class EvaluatePrequential extends ClassificationMainTask implements Capab
             "How many instances between memory bound checks.", 100000, 0,
             Integer.MAX_VALUE);
 
+    public IntOption prefetchSizeOption = new IntOption("prefetchSize", 'P',
+            "Instances read ahead from the stream on a separate thread (0 = read on the evaluation thread).",
+            0, 0, Integer.MAX_VALUE);
+
+    public FlagOption exactModelSizeOption = new FlagOption("exactModelSize", 'x',
+            "Measure the model size for RAM-Hours by walking the whole model at every sample, instead of using "
+                    + "the incremental estimate of multi-threaded learners.");
+
+    public FileOption checkpointFileOption = new FileOption("checkpointFile", 'k',
+            "File to write checkpoints of the learner and evaluator to, and to resume from.", null, "ckpt", true);
+
+    public IntOption checkpointFrequencyOption = new IntOption("checkpointFrequency", 'K',
+            "How many instances between checkpoints (0 = no checkpoints).", 0, 0, Integer.MAX_VALUE);
+
+    public FlagOption resumeOption = new FlagOption("resume", 'u',
+            "Resume from the checkpoint file if it exists, instead of starting over.");
+
     public FileOption dumpFileOption = new FileOption("dumpFile", 'd',
             "File to append intermediate csv results to.", null, "csv", true);
 
     public FileOption outputPredictionFileOption = new FileOption("outputPredictionFile", 'o',
             "File to append output predictions to.", null, "pred", true);
 
+    public MultiChoiceOption outputPredictionFormatOption = new MultiChoiceOption("outputPredictionFormat", 'p',
+            "Format of the output prediction file.", new String[]{"Text", "Binary", "BinaryConfidence"},
+            new String[]{"Lines of predicted,true class", "Binary PredictionLog records",
+                    "Binary PredictionLog records with the top-class confidence"}, 0);
+
     //New for prequential method DEPRECATED
     public IntOption widthOption = new IntOption("width",
             'w', "Size of Window", 1000);
@@ -111,6 +139,13 @@ public class EvaluatePrequential extends ClassificationMainTask implements Capab
         Learner learner = (Learner) getPreparedClassOption(this.learnerOption);
         ExampleStream stream = (ExampleStream) getPreparedClassOption(this.streamOption);
         LearningPerformanceEvaluator evaluator = (LearningPerformanceEvaluator) getPreparedClassOption(this.evaluatorOption);
+        File checkpointFile = this.checkpointFileOption.getFile();
+        Checkpoint checkpoint = readCheckpoint(checkpointFile, this.resumeOption.isSet());
+        if (checkpoint != null) {
+            learner = checkpoint.learner;
+            evaluator = checkpoint.evaluator;
+            stream = restoreStream(checkpoint, stream);
+        }
         boolean isInitialised = false;
         if(learner instanceof Multithreading){
             try {
@@ -123,7 +158,7 @@ public class EvaluatePrequential extends ClassificationMainTask implements Capab
             isInitialised = true;
 
         }
-        LearningCurve learningCurve = new LearningCurve(
+        LearningCurve learningCurve = checkpoint != null ? checkpoint.learningCurve : new LearningCurve(
                 "learning evaluation instances");
 
         //New for prequential methods
@@ -150,51 +185,48 @@ public class EvaluatePrequential extends ClassificationMainTask implements Capab
         }
         //End New for prequential methods
 
-        learner.setModelContext(stream.getHeader());
+        PrefetchingStream prefetchingStream = null;
+        if (this.prefetchSizeOption.getValue() > 0) {
+            // the instance limit is left to the loop below, so hasMoreInstances() at the limit, and with it the
+            // last sample, is the same as without prefetching
+            prefetchingStream = new PrefetchingStream(stream, this.prefetchSizeOption.getValue(), -1);
+            stream = prefetchingStream;
+        }
+        if (checkpoint == null) {
+            learner.setModelContext(stream.getHeader());
+        }
         int maxInstances = this.instanceLimitOption.getValue();
-        long instancesProcessed = 0;
+        long instancesProcessed = checkpoint == null ? 0 : checkpoint.instancesProcessed;
         int maxSeconds = this.timeLimitOption.getValue();
         int secondsElapsed = 0;
         monitor.setCurrentActivity("Evaluating learner...", -1.0);
 
         File dumpFile = this.dumpFileOption.getFile();
-        PrintStream immediateResultStream = null;
+        File outputPredictionFile = this.outputPredictionFileOption.getFile();
+        if (checkpoint != null) {
+            truncateOutput(dumpFile, checkpoint.dumpFileLength);
+            truncateOutput(outputPredictionFile, checkpoint.predictionFileLength);
+        }
+        AsyncOutputWriter immediateResultStream = null;
         if (dumpFile != null) {
             try {
-                if (dumpFile.exists()) {
-                    immediateResultStream = new PrintStream(
-                            new FileOutputStream(dumpFile, true), true);
-                } else {
-                    immediateResultStream = new PrintStream(
-                            new FileOutputStream(dumpFile), true);
-                }
+                immediateResultStream = new AsyncOutputWriter(dumpFile, dumpFile.exists());
             } catch (Exception ex) {
                 throw new RuntimeException(
                         "Unable to open immediate result file: " + dumpFile, ex);
             }
         }
-        //File for output predictions
-        File outputPredictionFile = this.outputPredictionFileOption.getFile();
-        PrintStream outputPredictionResultStream = null;
+        //File for output predictions, formatted and written on a background thread
+        AsyncOutputWriter outputPredictionResultStream = null;
         if (outputPredictionFile != null) {
-            try {
-                if (outputPredictionFile.exists()) {
-                    outputPredictionResultStream = new PrintStream(
-                            new FileOutputStream(outputPredictionFile, true), true);
-                } else {
-                    outputPredictionResultStream = new PrintStream(
-                            new FileOutputStream(outputPredictionFile), true);
-                }
-            } catch (Exception ex) {
-                throw new RuntimeException(
-                        "Unable to open prediction result file: " + outputPredictionFile, ex);
-            }
+            outputPredictionResultStream = openPredictionFile(outputPredictionFile,
+                    this.outputPredictionFormatOption.getChosenIndex(), stream.getHeader().numClasses());
         }
-        boolean firstDump = true;
+        boolean firstDump = checkpoint == null || dumpFile == null || dumpFile.length() == 0;
         boolean preciseCPUTiming = TimingUtils.enablePreciseTiming();
         long evaluateStartTime = TimingUtils.getNanoCPUTimeOfCurrentThread();
         long lastEvaluateStartTime = evaluateStartTime;
-        double RAMHours = 0.0;
+        double RAMHours = checkpoint == null ? 0.0 : checkpoint.ramHours;
 
         long t1 = System.currentTimeMillis();
         float timeTaken = 0;
@@ -207,15 +239,18 @@ public class EvaluatePrequential extends ClassificationMainTask implements Capab
             double[] prediction = learner.getVotesForInstance(testInst);
             // Output prediction
             if (outputPredictionFile != null) {
-                int trueClass = (int) ((Instance) trainInst.getData()).classValue();
-                outputPredictionResultStream.println(Utils.maxIndex(prediction) + "," + (
-                 ((Instance) testInst.getData()).classIsMissing() == true ? " ? " : trueClass));
+                writePrediction(outputPredictionResultStream, testInst, prediction,
+                        this.outputPredictionFormatOption.getChosenIndex() == 2);
             }
 
             //evaluator.addClassificationAttempt(trueClass, prediction, testInst.weight());
             evaluator.addResult(testInst, prediction);
             learner.trainOnInstance(trainInst);
             instancesProcessed++;
+            if (this.memCheckFrequencyOption.getValue() > 0 && learner instanceof Multithreading
+                    && instancesProcessed % this.memCheckFrequencyOption.getValue() == 0) {
+                ((Multithreading) learner).enforceMemoryBudget();
+            }
             if (instancesProcessed % this.sampleFrequencyOption.getValue() == 0
                     || stream.hasMoreInstances() == false) {
                 long t2 = System.currentTimeMillis();
@@ -224,35 +259,46 @@ public class EvaluatePrequential extends ClassificationMainTask implements Capab
                 long evaluateTime = TimingUtils.getNanoCPUTimeOfCurrentThread();
                 double time = TimingUtils.nanoTimeToSeconds(evaluateTime - evaluateStartTime);
                 double timeIncrement = TimingUtils.nanoTimeToSeconds(evaluateTime - lastEvaluateStartTime);
-                double RAMHoursIncrement = learner.measureByteSize() / (1024.0 * 1024.0 * 1024.0); //GBs
+                double RAMHoursIncrement = modelByteSize(learner, this.exactModelSizeOption.isSet()) / (1024.0 * 1024.0 * 1024.0); //GBs
                 RAMHoursIncrement *= (timeIncrement / 3600.0); //Hours
                 RAMHours += RAMHoursIncrement;
                 lastEvaluateStartTime = evaluateTime;
 
+                double trainTime = 0.0;
+                double predictTime = 0.0;
                 if(isInitialised){
+                    // CPU time of the learner's own threads, summed over every worker
                     Multithreading tempLearner = ((Multithreading) learner);
-                    time = (double)tempLearner.getCpuTime().get()/1000;
-
-
-                }else{
-                    time = evaluateTime;
+                    trainTime = TimingUtils.nanoTimeToSeconds(tempLearner.getTrainCpuTime());
+                    predictTime = TimingUtils.nanoTimeToSeconds(tempLearner.getPredictCpuTime());
+                    time = trainTime + predictTime;
                 }
 
+                List<Measurement> measurements = new ArrayList<>();
+                measurements.add(new Measurement(
+                        "learning evaluation instances",
+                        instancesProcessed));
+                measurements.add(new Measurement(
+                        "evaluation time ("
+                        + (preciseCPUTiming ? "cpu "
+                        : "") + "seconds)",
+                        time));
+                measurements.add(new Measurement(
+                        "model cost (RAM-Hours)",
+                        RAMHours));
+                measurements.add(new Measurement("Wall Clock Time", timeTaken));
+                if(isInitialised){
+                    measurements.add(new Measurement("training time (cpu seconds)", trainTime));
+                    measurements.add(new Measurement("prediction time (cpu seconds)", predictTime));
+                }
+                if (prefetchingStream != null) {
+                    measurements.add(new Measurement("learner waiting on stream (seconds)",
+                            prefetchingStream.getReaderWaitSeconds()));
+                    measurements.add(new Measurement("stream waiting on learner (seconds)",
+                            prefetchingStream.getStreamWaitSeconds()));
+                }
                 learningCurve.insertEntry(new LearningEvaluation(
-                        new Measurement[]{
-                            new Measurement(
-                            "learning evaluation instances",
-                            instancesProcessed),
-                            new Measurement(
-                            "evaluation time ("
-                            + (preciseCPUTiming ? "cpu "
-                            : "") + "seconds)",
-                            time),
-                            new Measurement(
-                            "model cost (RAM-Hours)",
-                            RAMHours),
-                                new Measurement("Wall Clock Time", timeTaken)
-                        },
+                        measurements.toArray(new Measurement[measurements.size()]),
                         evaluator, learner));
 
                 if (immediateResultStream != null) {
@@ -263,9 +309,27 @@ public class EvaluatePrequential extends ClassificationMainTask implements Capab
                     immediateResultStream.println(learningCurve.entryToString(learningCurve.numEntries() - 1));
                     immediateResultStream.flush();
                 }
+                if (outputPredictionResultStream != null) {
+                    outputPredictionResultStream.flush();
+                }
+            }
+            if (checkpointFile != null && this.checkpointFrequencyOption.getValue() > 0
+                    && instancesProcessed % this.checkpointFrequencyOption.getValue() == 0) {
+                writeCheckpoint(checkpointFile, new Checkpoint(learner, evaluator, learningCurve, instancesProcessed,
+                        RAMHours, outputLength(immediateResultStream), outputLength(outputPredictionResultStream),
+                        prefetchingStream == null ? stream : null));
             }
             if (instancesProcessed % INSTANCES_BETWEEN_MONITOR_UPDATES == 0) {
                 if (monitor.taskShouldAbort()) {
+                    // releases the learner's threads, which may be shared with other tasks
+                    if (learner instanceof Multithreading) {
+                        ((Multithreading) learner).trainingHasEnded();
+                    }
+                    if (prefetchingStream != null) {
+                        prefetchingStream.close();
+                    }
+                    closeOutput(immediateResultStream);
+                    closeOutput(outputPredictionResultStream);
                     return null;
                 }
                 long estimatedRemainingInstances = stream.estimatedRemainingInstances();
@@ -286,12 +350,11 @@ public class EvaluatePrequential extends ClassificationMainTask implements Capab
                         - evaluateStartTime);
             }
         }
-        if (immediateResultStream != null) {
-            immediateResultStream.close();
-        }
-        if (outputPredictionResultStream != null) {
-            outputPredictionResultStream.close();
+        if (prefetchingStream != null) {
+            prefetchingStream.close();
         }
+        closeOutput(immediateResultStream);
+        closeOutput(outputPredictionResultStream);
         if(learner instanceof Multithreading){
 
             ((Multithreading) learner).trainingHasEnded();
@@ -299,6 +362,90 @@ public class EvaluatePrequential extends ClassificationMainTask implements Capab
         return learningCurve;
     }
 
+    /**
+     * Opens the output prediction file in the chosen format: 0 for text, 1 for a binary PredictionLog and
+     * 2 for a binary PredictionLog with confidences.
+     */
+    protected static AsyncOutputWriter openPredictionFile(File file, int format, int numClasses) {
+        try {
+            return format == 0 ? new AsyncOutputWriter(file, file.exists())
+                    : AsyncOutputWriter.binaryPredictionLog(file, format == 2, numClasses);
+        } catch (Exception ex) {
+            throw new RuntimeException(
+                    "Unable to open prediction result file: " + file, ex);
+        }
+    }
+
+    /** Writes the prediction of one instance, with its top-class confidence if asked for. */
+    protected static void writePrediction(AsyncOutputWriter output, Example example, double[] prediction,
+                                          boolean confidence) {
+        Instance inst = (Instance) example.getData();
+        int predicted = Utils.maxIndex(prediction);
+        output.prediction(predicted, inst.classIsMissing() ? AsyncOutputWriter.MISSING_CLASS : (int) inst.classValue(),
+                confidence ? PredictionLog.confidence(prediction, predicted) : 0.0f);
+    }
+
+    /** Reads the checkpoint to resume from, or returns null if not resuming or there is no checkpoint yet. */
+    protected static Checkpoint readCheckpoint(File file, boolean resume) {
+        if (!resume || file == null || !file.exists()) return null;
+        try {
+            return Checkpoint.read(file);
+        } catch (IOException ex) {
+            throw new RuntimeException("Unable to read checkpoint file: " + file, ex);
+        }
+    }
+
+    /** The stream of checkpoint, or stream skipped ahead past the instances processed if it was not saved. */
+    protected static ExampleStream restoreStream(Checkpoint checkpoint, ExampleStream stream) {
+        try {
+            return checkpoint.restoreStream(stream);
+        } catch (IOException ex) {
+            throw new RuntimeException("Unable to restore the stream of the checkpoint", ex);
+        }
+    }
+
+    protected static void writeCheckpoint(File file, Checkpoint checkpoint) {
+        try {
+            Checkpoint.write(file, checkpoint);
+        } catch (IOException ex) {
+            throw new RuntimeException("Unable to write checkpoint file: " + file, ex);
+        }
+    }
+
+    /** Size of the model in bytes, from the incremental estimate of a multi-threaded learner unless exact. */
+    protected static long modelByteSize(Learner learner, boolean exact) {
+        return !exact && learner instanceof Multithreading ? ((Multithreading) learner).estimatedByteSize()
+                : learner.measureByteSize();
+    }
+
+    /** Length of an output file of this task once everything given to it is written, or -1 if it was not opened. */
+    protected static long outputLength(AsyncOutputWriter output) {
+        return output == null ? -1 : output.syncedLength();
+    }
+
+    /**
+     * Cuts an output file back to the length recorded at the checkpoint resumed from, so what was written after
+     * the checkpoint is not written again. Nothing is cut if the checkpoint did not record the file.
+     */
+    protected static void truncateOutput(File file, long length) {
+        if (file == null || length < 0 || !file.exists() || file.length() <= length) return;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+            channel.truncate(length);
+        } catch (IOException ex) {
+            throw new RuntimeException("Unable to truncate output file: " + file, ex);
+        }
+    }
+
+    /** Writes out and closes an output file of this task, if it was opened. */
+    protected static void closeOutput(AsyncOutputWriter output) {
+        if (output == null) return;
+        try {
+            output.close();
+        } catch (IOException ex) {
+            throw new RuntimeException("Unable to write output file", ex);
+        }
+    }
+
     @Override
     public ImmutableCapabilities defineImmutableCapabilities() {
         if (this.getClass() == EvaluatePrequential.class)
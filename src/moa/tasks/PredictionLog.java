@@ -0,0 +1,279 @@
+/*
+ *    PredictionLog.java
+ *
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package moa.tasks;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Binary prediction log written by the evaluation tasks, and a reader that memory-maps it to recompute
+ * performance offline. A log is a header followed by one fixed-width record per instance, big-endian:
+ *
+ * <pre>
+ * header:  8 bytes "MOAPRED" 0, int version, int flags, int number of classes
+ * record:  int predicted class, int true class (-1 if missing)[, float top-class confidence]
+ * </pre>
+ *
+ * <p>The confidence, the share of the votes of the predicted class, is only recorded if the
+ * CONFIDENCE flag is set. Instance weights are not recorded, so the measures recomputed from a log
+ * weigh every instance the same.</p>
+ *
+ * <p>As in BasicClassificationPerformanceEvaluator, instances without a true class are left out of the
+ * measures. A prediction outside the class range still counts as a wrong classification; the confusion
+ * matrix keeps those in an extra last column. Both are counted, and main() reports them.</p>
+ *
+ * <p>Usage: java moa.tasks.PredictionLog file [window]</p>
+ */
+public class PredictionLog implements Closeable {
+
+    public static final byte[] MAGIC = {'M', 'O', 'A', 'P', 'R', 'E', 'D', 0};
+
+    public static final int VERSION = 1;
+
+    /** Flag of logs with the top-class confidence of every prediction */
+    public static final int CONFIDENCE = 1;
+
+    public static final int HEADER_SIZE = MAGIC.length + 12;
+
+    /** Bytes of one record */
+    public static int recordSize(boolean confidence) {
+        return confidence ? 12 : 8;
+    }
+
+    public static void writeHeader(DataOutput out, boolean confidence, int numClasses) throws IOException {
+        out.write(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(confidence ? CONFIDENCE : 0);
+        out.writeInt(numClasses);
+    }
+
+    /** Share of the votes of the predicted class, 0 if there are no votes. */
+    public static float confidence(double[] votes, int predicted) {
+        double sum = 0.0;
+        for (double vote : votes) sum += vote;
+        return sum > 0.0 && predicted < votes.length ? (float) (votes[predicted] / sum) : 0.0f;
+    }
+
+    /** Records mapped at a time, which keeps every mapping under 2GB */
+    protected static final int SEGMENT_RECORDS = 1 << 26;
+
+    protected final File _file;
+
+    protected final RandomAccessFile _raf;
+
+    protected final boolean _confidence;
+
+    protected final int _numClasses;
+
+    protected final int _recordSize;
+
+    protected final long _size;
+
+    protected final MappedByteBuffer[] _segments;
+
+    /** Opens and memory-maps a log; a record being written at the end is left out. */
+    public PredictionLog(File file) throws IOException {
+        _file = file;
+        _raf = new RandomAccessFile(file, "r");
+        try {
+            byte[] magic = new byte[MAGIC.length];
+            _raf.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IOException("Not a binary prediction log: " + file);
+            }
+            int version = _raf.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported prediction log version " + version + ": " + file);
+            }
+            _confidence = (_raf.readInt() & CONFIDENCE) != 0;
+            _numClasses = _raf.readInt();
+            _recordSize = recordSize(_confidence);
+            _size = (_raf.length() - HEADER_SIZE) / _recordSize;
+
+            FileChannel channel = _raf.getChannel();
+            _segments = new MappedByteBuffer[(int) ((_size + SEGMENT_RECORDS - 1) / SEGMENT_RECORDS)];
+            for (int s = 0; s < _segments.length; s++) {
+                long first = (long) s * SEGMENT_RECORDS;
+                long records = Math.min(SEGMENT_RECORDS, _size - first);
+                _segments[s] = channel.map(FileChannel.MapMode.READ_ONLY,
+                        HEADER_SIZE + first * _recordSize, records * _recordSize);
+            }
+        } catch (IOException e) {
+            _raf.close();
+            throw e;
+        }
+    }
+
+    /** Throws unless file is a log with the given layout, so that records can be appended to it. */
+    public static void checkAppendable(File file, boolean confidence, int numClasses) throws IOException {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC) || in.readInt() != VERSION
+                    || ((in.readInt() & CONFIDENCE) != 0) != confidence || in.readInt() != numClasses) {
+                throw new IOException("Can not append to " + file + ", which is not a prediction log of the same layout");
+            }
+        }
+    }
+
+    public long size() {
+        return _size;
+    }
+
+    public int numClasses() {
+        return _numClasses;
+    }
+
+    public boolean hasConfidence() {
+        return _confidence;
+    }
+
+    private int offset(long index) {
+        return (int) (index % SEGMENT_RECORDS) * _recordSize;
+    }
+
+    public int predicted(long index) {
+        return _segments[(int) (index / SEGMENT_RECORDS)].getInt(offset(index));
+    }
+
+    /** True class of the instance, or -1 if it was missing. */
+    public int trueClass(long index) {
+        return _segments[(int) (index / SEGMENT_RECORDS)].getInt(offset(index) + 4);
+    }
+
+    public float confidence(long index) {
+        if (!_confidence) throw new IllegalStateException("Confidences were not recorded in " + _file);
+        return _segments[(int) (index / SEGMENT_RECORDS)].getFloat(offset(index) + 8);
+    }
+
+    /**
+     * Confusion matrix of the instances from to to (exclusive) with a true class, indexed [true][predicted]. It has
+     * one column more than there are classes, counting the predictions outside the class range.
+     */
+    public long[][] confusionMatrix(long from, long to) {
+        long[][] matrix = new long[_numClasses][_numClasses + 1];
+        for (long i = from; i < to; i++) {
+            int actual = trueClass(i);
+            if (actual < 0 || actual >= _numClasses) continue;
+            int predicted = predicted(i);
+            matrix[actual][predicted < 0 || predicted >= _numClasses ? _numClasses : predicted]++;
+        }
+        return matrix;
+    }
+
+    /** Number of the instances from to to (exclusive) without a true class, which the measures leave out. */
+    public long missingClasses(long from, long to) {
+        long missing = 0;
+        for (long i = from; i < to; i++) {
+            int actual = trueClass(i);
+            if (actual < 0 || actual >= _numClasses) missing++;
+        }
+        return missing;
+    }
+
+    /** Number of the predictions in matrix outside the class range, which count as wrong. */
+    public static long outOfRange(long[][] matrix) {
+        long count = 0;
+        for (long[] row : matrix) {
+            for (int j = matrix.length; j < row.length; j++) count += row[j];
+        }
+        return count;
+    }
+
+    /** Percentage of the classified instances predicted correctly. */
+    public static double accuracy(long[][] matrix) {
+        long correct = 0;
+        long total = 0;
+        for (int i = 0; i < matrix.length; i++) {
+            for (int j = 0; j < matrix[i].length; j++) total += matrix[i][j];
+            correct += matrix[i][i];
+        }
+        return total > 0 ? 100.0 * correct / total : 0.0;
+    }
+
+    /** Kappa statistic in percent, as BasicClassificationPerformanceEvaluator reports it. */
+    public static double kappa(long[][] matrix) {
+        long total = 0;
+        long correct = 0;
+        long[] rows = new long[matrix.length];
+        long[] columns = new long[matrix.length];
+        for (int i = 0; i < matrix.length; i++) {
+            for (int j = 0; j < matrix[i].length; j++) {
+                rows[i] += matrix[i][j];
+                // predictions outside the class range agree with no true class
+                if (j < matrix.length) columns[j] += matrix[i][j];
+                total += matrix[i][j];
+            }
+            correct += matrix[i][i];
+        }
+        if (total == 0) return 0.0;
+        double p0 = (double) correct / total;
+        double pc = 0.0;
+        for (int i = 0; i < matrix.length; i++) {
+            pc += ((double) rows[i] / total) * ((double) columns[i] / total);
+        }
+        return pc < 1.0 ? 100.0 * (p0 - pc) / (1.0 - pc) : 0.0;
+    }
+
+    /** Accuracy of every consecutive window of the log; the last window may be shorter. */
+    public double[] windowedAccuracy(long window) {
+        double[] accuracies = new double[(int) ((_size + window - 1) / window)];
+        for (int w = 0; w < accuracies.length; w++) {
+            accuracies[w] = accuracy(confusionMatrix(w * window, Math.min(_size, (w + 1) * window)));
+        }
+        return accuracies;
+    }
+
+    @Override
+    public void close() throws IOException {
+        _raf.close();
+    }
+
+    /** Prints the accuracy and kappa of a log, and the accuracy of every window if a window size is given. */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1 || args.length > 2) {
+            System.err.println("Usage: java moa.tasks.PredictionLog file [window]");
+            System.exit(1);
+        }
+        try (PredictionLog log = new PredictionLog(new File(args[0]))) {
+            long[][] matrix = log.confusionMatrix(0, log.size());
+            System.out.println("instances," + log.size());
+            System.out.println("classes," + log.numClasses());
+            System.out.println("instances without a true class," + log.missingClasses(0, log.size()));
+            System.out.println("predictions outside the class range," + outOfRange(matrix));
+            System.out.println("accuracy (percent)," + accuracy(matrix));
+            System.out.println("Kappa Statistic (percent)," + kappa(matrix));
+            if (args.length == 2) {
+                long window = Long.parseLong(args[1]);
+                double[] accuracies = log.windowedAccuracy(window);
+                System.out.println("window end,accuracy (percent)");
+                for (int w = 0; w < accuracies.length; w++) {
+                    System.out.println(Math.min(log.size(), (w + 1) * window) + "," + accuracies[w]);
+                }
+            }
+        }
+    }
+}